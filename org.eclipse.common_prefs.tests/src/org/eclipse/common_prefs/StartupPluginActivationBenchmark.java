@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs;
+
+import java.util.Arrays;
+
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+
+/**
+ * Measures the activation time of the plug-in, as it is now and with the work
+ * that was done on activation before the proxy service and the network
+ * settings were looked up on first use, i.e. tracking the proxy service and
+ * capturing the network settings. The times are printed, and depend on the
+ * machine, so this isn't part of the test suite. Run it explicitly as a JUnit
+ * plug-in test. Reading is disabled while measuring, so no loading that may
+ * use the network is started, see {@link StartupPluginActivationTest}.
+ * <p>
+ * On startup it's the first activation that counts, since that is also when
+ * org.eclipse.core.net is loaded. It's reported separately from the median of
+ * the following activations, unless org.eclipse.core.net was already active.
+ */
+public class StartupPluginActivationBenchmark {
+
+	private static final int RUNS = 11;
+
+	@Test
+	public void measureActivation() throws Exception {
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		boolean enableRead = store.getBoolean(PreferenceInitializer.PREF_ENABLE_READ);
+		store.setValue(PreferenceInitializer.PREF_ENABLE_READ, false);
+		try {
+			measure();
+		} finally {
+			StartupPlugin.getDefault().getPreferenceStore().setValue(
+					PreferenceInitializer.PREF_ENABLE_READ, enableRead);
+		}
+	}
+
+	private static void measure() throws Exception {
+		Bundle netBundle = Platform.getBundle("org.eclipse.core.net"); //$NON-NLS-1$
+		boolean netActive = netBundle != null && netBundle.getState() == Bundle.ACTIVE;
+
+		// The eager activation first, so it pays for loading org.eclipse.core.net
+		long firstBefore = activate(true);
+		long firstAfter = activate(false);
+		long[] before = new long[RUNS];
+		long[] after = new long[RUNS];
+		for (int i = 0; i < RUNS; i++) {
+			before[i] = activate(true);
+			after[i] = activate(false);
+		}
+		Arrays.sort(before);
+		Arrays.sort(after);
+
+		System.out.println("Activation of " + StartupPlugin.PLUGIN_ID //$NON-NLS-1$
+				+ (netActive ? " (org.eclipse.core.net already active)" : "")); //$NON-NLS-1$ //$NON-NLS-2$
+		print("before, first", firstBefore); //$NON-NLS-1$
+		print("after, first", firstAfter); //$NON-NLS-1$
+		print("before, median", before[RUNS / 2]); //$NON-NLS-1$
+		print("after, median", after[RUNS / 2]); //$NON-NLS-1$
+	}
+
+	// Restart the plug-in and return the time spent activating it, including
+	// the work done eagerly before, if asked for
+	private static long activate(boolean eager) throws Exception {
+		long start = System.nanoTime();
+		StartupPlugin plugin = StartupPluginActivationTest.restart();
+		if (eager) {
+			plugin.getProxyService();
+			plugin.getNetworkPrefResources();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void print(String label, long time) {
+		System.out.println(String.format("  %-16s %8.2f ms", label, time / 1000000.0)); //$NON-NLS-1$
+	}
+}
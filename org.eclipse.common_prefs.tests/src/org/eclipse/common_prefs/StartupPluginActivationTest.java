@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Field;
+
+import org.eclipse.common_prefs.core.NetworkPrefResources;
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+
+/**
+ * Checks that the proxy service isn't tracked and the network settings aren't
+ * captured when the plug-in is activated, only when first used, see
+ * {@link StartupPlugin#getProxyService()} and
+ * {@link StartupPlugin#getNetworkPrefResources()}. The plug-in is restarted
+ * with reading disabled, so no loading that may use the network is started.
+ */
+public class StartupPluginActivationTest {
+
+	private boolean enableRead;
+
+	@Before
+	public void setUp() {
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		enableRead = store.getBoolean(PreferenceInitializer.PREF_ENABLE_READ);
+		store.setValue(PreferenceInitializer.PREF_ENABLE_READ, false);
+	}
+
+	@After
+	public void tearDown() {
+		StartupPlugin.getDefault().getPreferenceStore().setValue(
+				PreferenceInitializer.PREF_ENABLE_READ, enableRead);
+	}
+
+	@Test
+	public void networkNotTouchedOnActivation() throws Exception {
+		StartupPlugin plugin = restart();
+		assertNull("proxy service tracked", getField(plugin, "tracker")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertNull("network settings captured", getField(plugin, "networkPrefResources")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test
+	public void networkSettingsCapturedOnFirstUse() throws Exception {
+		StartupPlugin plugin = restart();
+		NetworkPrefResources settings = plugin.getNetworkPrefResources();
+		assertNotNull(settings);
+		assertNotNull("proxy service not tracked", getField(plugin, "tracker")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertSame(settings, plugin.getNetworkPrefResources());
+	}
+
+	// Also used by StartupPluginActivationBenchmark
+	static StartupPlugin restart() throws Exception {
+		Bundle bundle = StartupPlugin.getDefault().getBundle();
+		bundle.stop(Bundle.STOP_TRANSIENT);
+		bundle.start(Bundle.START_TRANSIENT);
+		return StartupPlugin.getDefault();
+	}
+
+	private static Object getField(StartupPlugin plugin, String name) throws Exception {
+		Field field = StartupPlugin.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(plugin);
+	}
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.eclipse.common_prefs.StartupPlugin;
+import org.eclipse.core.runtime.FileLocator;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.Platform;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+
+/**
+ * Provisions a new workspace from the preference files in the preferences
+ * folder of the repository, which are exported by Eclipse and thus have
+ * export root markers, see {@link CommonPrefProvisioner}.
+ */
+public class CommonPrefProvisionerTest {
+
+	private static final String TESTS_BUNDLE_ID = "org.eclipse.common_prefs.tests"; //$NON-NLS-1$
+	private static final String SETTINGS_DIR = ".metadata/.plugins/org.eclipse.core.runtime/.settings"; //$NON-NLS-1$
+	private static final String STATE_DIR = ".metadata/.plugins/" + StartupPlugin.PLUGIN_ID; //$NON-NLS-1$
+	private static final String INSTANCE_PREFIX = "/instance/"; //$NON-NLS-1$
+
+	private File[] epfFiles;
+	private CommonPrefEPFResources prefFiles;
+	private File workspace;
+
+	@Before
+	public void setUp() throws Exception {
+		File preferencesDir = getPreferencesDirectory();
+		Assume.assumeTrue(preferencesDir != null && preferencesDir.isDirectory());
+		epfFiles = preferencesDir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".epf"); //$NON-NLS-1$
+			}
+		});
+		Arrays.sort(epfFiles);
+
+		// Init resources, so all are due in a new workspace
+		prefFiles = new CommonPrefEPFResources();
+		for (File epfFile : epfFiles)
+			prefFiles.addPrefFile(null, epfFile.getPath(), false, false);
+		workspace = Files.createTempDirectory("common_prefs_ws").toFile(); //$NON-NLS-1$
+	}
+
+	@After
+	public void tearDown() {
+		if (workspace != null)
+			delete(workspace);
+	}
+
+	@Test
+	public void provisionFromBundledFiles() throws Exception {
+		MultiStatus status = provision();
+		assertTrue(status.toString(), status.getSeverity() < IStatus.ERROR);
+
+		// Every instance scope key, the last resource in the list winning
+		Map<String, Properties> expected = new TreeMap<String, Properties>();
+		for (File epfFile : epfFiles) {
+			for (Map.Entry<Object, Object> entry : load(epfFile).entrySet()) {
+				String fullPath = (String) entry.getKey();
+				if (!fullPath.startsWith(INSTANCE_PREFIX))
+					continue;
+				int slash = fullPath.lastIndexOf('/');
+				String qualifier = fullPath.substring(INSTANCE_PREFIX.length(), slash);
+				Properties prefs = expected.get(qualifier);
+				if (prefs == null) {
+					prefs = new Properties();
+					expected.put(qualifier, prefs);
+				}
+				prefs.setProperty(fullPath.substring(slash + 1), (String) entry.getValue());
+			}
+		}
+		assertFalse(expected.isEmpty());
+
+		File settingsDir = new File(workspace, SETTINGS_DIR);
+		for (Map.Entry<String, Properties> file : expected.entrySet()) {
+			Properties prefs = load(new File(settingsDir, file.getKey() + ".prefs")); //$NON-NLS-1$
+			for (String key : file.getValue().stringPropertyNames())
+				assertEquals(file.getKey() + '/' + key, file.getValue().getProperty(key), prefs.getProperty(key));
+		}
+	}
+
+	@Test
+	public void provisionedWorkspaceHasNothingDue() throws Exception {
+		MultiStatus status = provision();
+		assertTrue(status.toString(), status.getSeverity() < IStatus.ERROR);
+
+		CommonPrefStateIndex index = CommonPrefStateIndex.open(new File(workspace, STATE_DIR));
+		for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();) {
+			CommonPrefEPFResource prefFile = iter.next();
+			assertFalse(prefFile.getResourceName(), CommonPrefsHelper.isDue(index, prefFile, true));
+		}
+	}
+
+	private MultiStatus provision() {
+		return new CommonPrefProvisioner(prefFiles).provision(
+				Collections.singletonList(workspace), CommonPrefsHelper.createLoadStatus());
+	}
+
+	// The preferences folder next to this project
+	private static File getPreferencesDirectory() throws IOException {
+		Bundle bundle = Platform.getBundle(TESTS_BUNDLE_ID);
+		if (bundle == null)
+			return null;
+		URL url = FileLocator.toFileURL(bundle.getEntry("/")); //$NON-NLS-1$
+		return new File(new File(url.getPath()).getParentFile(), "preferences"); //$NON-NLS-1$
+	}
+
+	private static Properties load(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream input = new BufferedInputStream(new FileInputStream(file));
+		try {
+			properties.load(input);
+		} finally {
+			input.close();
+		}
+		return properties;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
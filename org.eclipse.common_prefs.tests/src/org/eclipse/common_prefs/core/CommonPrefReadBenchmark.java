@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs.core;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Properties;
+
+
+/**
+ * Benchmark of reading a large exported preference (.epf) file into
+ * properties, comparing the stream path used for file resources with reading
+ * from a memory mapped ByteBuffer, both wrapped in an InputStream and parsed
+ * straight from the buffer through a Reader. Not a test, run as a Java
+ * application, optionally with the file to read as argument:
+ * <p>
+ * <code>
+ * java org.eclipse.common_prefs.core.CommonPrefReadBenchmark [&lt;file.epf&gt;]
+ * </code>
+ * <p>
+ * Without argument a 15 MB file with 120000 keys is generated in the
+ * temporary directory. The median time per load of each round is printed.
+ */
+public class CommonPrefReadBenchmark {
+
+	private static final int KEYS = 120000;
+	private static final int ROUNDS = 5;
+	private static final int LOADS = 20;
+
+	private interface Loader {
+		int load(File file) throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException {
+		File file;
+		if (args.length > 0)
+			file = new File(args[0]);
+		else {
+			file = File.createTempFile("benchmark", ".epf"); //$NON-NLS-1$ //$NON-NLS-2$
+			file.deleteOnExit();
+			generate(file);
+		}
+		System.out.println(file + ": " + file.length() / 1024 + " KB"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		Loader stream = new Loader() {
+			public int load(File file) throws IOException {
+				Properties properties = new Properties();
+				InputStream input = new BufferedInputStream(new FileInputStream(file));
+				try {
+					properties.load(input);
+				} finally {
+					input.close();
+				}
+				return properties.size();
+			}
+		};
+		Loader mappedStream = new Loader() {
+			public int load(File file) throws IOException {
+				Properties properties = new Properties();
+				properties.load(new ByteBufferInputStream(map(file)));
+				return properties.size();
+			}
+		};
+		Loader mappedReader = new Loader() {
+			public int load(File file) throws IOException {
+				Properties properties = new Properties();
+				properties.load(new ByteBufferReader(map(file)));
+				return properties.size();
+			}
+		};
+
+		for (int round = 0; round < ROUNDS; round++) {
+			System.out.println(String.format("round %d: stream %.1f ms, mapped stream %.1f ms, mapped reader %.1f ms", //$NON-NLS-1$
+					Integer.valueOf(round + 1), Double.valueOf(time(stream, file)),
+					Double.valueOf(time(mappedStream, file)), Double.valueOf(time(mappedReader, file))));
+		}
+	}
+
+	// The median time of the loads, in milliseconds
+	private static double time(Loader loader, File file) throws IOException {
+		long[] times = new long[LOADS];
+		for (int i = 0; i < LOADS; i++) {
+			long start = System.nanoTime();
+			if (loader.load(file) == 0)
+				throw new IOException("Nothing loaded"); //$NON-NLS-1$
+			times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		return times[LOADS / 2] / 1000000.0;
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		FileInputStream input = new FileInputStream(file);
+		try {
+			FileChannel channel = input.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			input.close();
+		}
+	}
+
+	// Keys and values of the sizes typical of an export, e.g. formatter settings
+	private static void generate(File file) throws IOException {
+		OutputStream output = new FileOutputStream(file);
+		try {
+			StringBuilder text = new StringBuilder("file_export_version=3.0\n"); //$NON-NLS-1$
+			for (int i = 0; i < KEYS; i++) {
+				text.append("/instance/org.eclipse.jdt.core/org.eclipse.jdt.core.formatter.setting_") //$NON-NLS-1$
+					.append(i).append("=insert\\:value ").append(i) //$NON-NLS-1$
+					.append(" with some padding to a typical length\n"); //$NON-NLS-1$
+			}
+			output.write(text.toString().getBytes("ISO-8859-1")); //$NON-NLS-1$
+		} finally {
+			output.close();
+		}
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining())
+				return -1;
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+	}
+
+	// ISO-8859-1, as Properties.load(InputStream), decoded straight from the buffer
+	private static class ByteBufferReader extends Reader {
+		private final ByteBuffer buffer;
+
+		ByteBufferReader(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int read(char[] chars, int offset, int length) {
+			if (!buffer.hasRemaining())
+				return -1;
+			length = Math.min(length, buffer.remaining());
+			for (int i = 0; i < length; i++)
+				chars[offset + i] = (char) (buffer.get() & 0xff);
+			return length;
+		}
+
+		public void close() {
+			// Nothing to release, the mapping is released when collected
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.eclipse.common_prefs.core.CommonPrefEPFResource;
+import org.eclipse.common_prefs.core.CommonPrefEPFResources;
+import org.eclipse.common_prefs.core.CommonPrefFingerprint;
+import org.eclipse.common_prefs.core.CommonPrefLoadMetrics;
+import org.eclipse.common_prefs.core.CommonPrefSnapshot;
+import org.eclipse.common_prefs.core.CommonPrefsHelper;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.preferences.ConfigurationScope;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences;
+import org.eclipse.core.runtime.preferences.InstanceScope;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.osgi.service.prefs.BackingStoreException;
+
+
+/**
+ * Headless application applying the common preferences to the workspace,
+ * for builds and other batch runs where no workbench is started and hence
+ * {@link StartupClass} isn't called. Run as:
+ * <p>
+ * <code>
+ * eclipse -nosplash -application org.eclipse.common_prefs.apply -data &lt;workspace&gt; [-offline]
+ * </code>
+ * <p>
+ * The same list and pipeline as on workbench startup is used, see
+ * {@link StartupLoadJob}, including the fast paths: if nothing has changed
+ * since last applied to the workspace, see {@link CommonPrefFingerprint},
+ * once the URL refs are revalidated with conditional requests, nothing is
+ * parsed or applied. Else unchanged resources are applied from the compiled
+ * snapshot, see {@link CommonPrefSnapshot}. With <code>-offline</code> only
+ * the cached copies of the URL refs are used, and nothing is revalidated.
+ * <p>
+ * Since there is no background to continue in, the preferences are flushed
+ * before the application returns. The status, with the timing of the phases,
+ * is printed and logged. The exit code is 0, or 1 if any resource failed to
+ * be applied. Unlike on workbench startup, the default preferences of a new
+ * workspace aren't saved, since they are only used by the export wizard.
+ */
+public class CommonPrefApplication implements IApplication {
+
+	/** Exit code when any resource failed to be applied */
+	public static final Integer EXIT_ERROR = Integer.valueOf(1);
+
+	private static final String ARG_OFFLINE = "-offline"; //$NON-NLS-1$
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.equinox.app.IApplication#start(org.eclipse.equinox.app.IApplicationContext)
+	 */
+	public Object start(IApplicationContext context) throws Exception {
+		context.applicationRunning();
+		boolean offline = hasArgument(context, ARG_OFFLINE);
+
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		if (!store.getBoolean(PreferenceInitializer.PREF_ENABLE_READ)) {
+			System.out.println("Reading common preferences is disabled. Nothing applied.");
+			return EXIT_OK;
+		}
+
+		// Recording was started when the plug-in was activated
+		StartupPrefetchJob prefetchJob = takePrefetchJob(offline);
+		if (prefetchJob == null) {
+			prefetchJob = new StartupPrefetchJob(offline);
+			prefetchJob.run(null);
+		}
+
+		MultiStatus status = prefetchJob.getLoadStatus();
+		CommonPrefEPFResources prefFiles = prefetchJob.getPrefFiles();
+		if (prefetchJob.isUnchanged()) {
+			status.add(new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID,
+					"Preference resources unchanged since last applied. Nothing to read."));
+			CommonPrefsHelper.applyDrift(CommonPrefsHelper.detectDrift(prefFiles, null, status), status);
+			if (!offline && prefetchJob.isCachedOnly())
+				revalidate(prefFiles, status);
+		} else
+			apply(prefFiles, status);
+
+		flush(status);
+
+		// Report the timing, and keep it for comparing across runs
+		CommonPrefLoadMetrics metrics = CommonPrefLoadMetrics.end();
+		if (metrics != null) {
+			status.add(metrics.toStatus());
+			metrics.save();
+		}
+		if (status.getChildren().length > 0)
+			StartupPlugin.log(status);
+		print(status, ""); //$NON-NLS-1$
+
+		return (status.getSeverity() < IStatus.ERROR) ? EXIT_OK : EXIT_ERROR;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.equinox.app.IApplication#stop()
+	 */
+	public void stop() {
+		// Applying is short and not interruptible, so let it complete
+	}
+
+	// Use the resources loaded since the plug-in was activated, if loaded the
+	// way asked for, or if unchanged since last applied
+	private StartupPrefetchJob takePrefetchJob(boolean offline) {
+		StartupPrefetchJob prefetchJob = StartupPlugin.getDefault().takePrefetchJob();
+		if (prefetchJob == null)
+			return null;
+		try {
+			prefetchJob.join();
+		} catch (InterruptedException e) {
+			return null;
+		}
+		if (prefetchJob.getPrefFiles() == null)
+			return null;
+		if (!prefetchJob.isUnchanged() && prefetchJob.isCachedOnly() != offline)
+			return null;
+		return prefetchJob;
+	}
+
+	// Apply the resources that are due, from the snapshot if unchanged
+	private void apply(CommonPrefEPFResources prefFiles, MultiStatus status) {
+		List<CommonPrefEPFResource> dueFiles = CommonPrefsHelper.prepareLoad(prefFiles, status, null);
+		Properties drifted = CommonPrefsHelper.detectDrift(prefFiles, dueFiles, status);
+		CommonPrefSnapshot snapshot = CommonPrefsHelper.openSnapshot(prefFiles, dueFiles);
+		if (snapshot != null)
+			CommonPrefsHelper.applySnapshot(dueFiles, snapshot, status);
+		else
+			CommonPrefsHelper.applyPreparedPreferences(dueFiles,
+					CommonPrefsHelper.mergePreparedPreferences(dueFiles, status), status);
+
+		CommonPrefsHelper.applyDrift(drifted, status);
+		CommonPrefFingerprint.store(status.getSeverity() < IStatus.ERROR ?
+				CommonPrefFingerprint.compute(prefFiles) : null);
+		if (!CommonPrefSnapshot.matches(prefFiles))
+			CommonPrefSnapshot.save(prefFiles);
+		prefFiles.releaseContent();
+	}
+
+	// Pick up newer versions of the URL refs applied from the cache. There is
+	// no background to do it in, so it's done before returning.
+	private void revalidate(CommonPrefEPFResources cachedFiles, MultiStatus status) {
+		StartupPlugin.getDefault().clearCommonPrefFiles();
+		CommonPrefEPFResources prefFiles = StartupPlugin.getDefault().getCommonPrefFiles(status);
+		MultiStatus revalidateStatus = CommonPrefsHelper.createLoadStatus();
+		CommonPrefsHelper.revalidatePreferences(cachedFiles, prefFiles, revalidateStatus);
+		cachedFiles.releaseContent();
+		prefFiles.releaseContent();
+		status.addAll(revalidateStatus);
+		CommonPrefFingerprint.store(revalidateStatus.getSeverity() < IStatus.ERROR ?
+				CommonPrefFingerprint.compute(prefFiles) : null);
+	}
+
+	// Persist the applied preferences and the plug-in state before exiting
+	private void flush(MultiStatus status) {
+		IEclipsePreferences root = Platform.getPreferencesService().getRootNode();
+		try {
+			root.node(InstanceScope.SCOPE).flush();
+			root.node(ConfigurationScope.SCOPE).flush();
+		} catch (BackingStoreException e) {
+			status.add(new Status(IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Failed to save the applied preferences", e));
+		}
+	}
+
+	private static boolean hasArgument(IApplicationContext context, String name) {
+		Object args = context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+		if (args instanceof String[]) {
+			for (String arg : (String[]) args) {
+				if (name.equalsIgnoreCase(arg))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	// Print the status tree, one line per status
+	static void print(IStatus status, String indent) {
+		System.out.println(indent + getSeverityName(status.getSeverity()) + ": " + status.getMessage()); //$NON-NLS-1$
+		if (status.getException() != null)
+			System.out.println(indent + "  " + status.getException()); //$NON-NLS-1$
+		IStatus[] children = status.getChildren();
+		for (int i = 0; i < children.length; i++)
+			print(children[i], indent + "  "); //$NON-NLS-1$
+	}
+
+	private static String getSeverityName(int severity) {
+		switch (severity) {
+		case IStatus.ERROR:
+			return "ERROR"; //$NON-NLS-1$
+		case IStatus.WARNING:
+			return "WARNING"; //$NON-NLS-1$
+		case IStatus.CANCEL:
+			return "CANCEL"; //$NON-NLS-1$
+		case IStatus.INFO:
+			return "INFO"; //$NON-NLS-1$
+		default:
+			return "OK"; //$NON-NLS-1$
+		}
+	}
+}
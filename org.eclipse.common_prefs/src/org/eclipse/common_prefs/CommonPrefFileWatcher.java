@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.common_prefs.core.CommonPrefEPFResource;
+import org.eclipse.common_prefs.core.CommonPrefEPFResources;
+import org.eclipse.common_prefs.core.CommonPrefsHelper;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.preferences.IExportedPreferences;
+import org.eclipse.swt.widgets.Display;
+
+
+/**
+ * Watches the directories of the local preference files in the list, and the
+ * configuration directory holding the .ref files, for changes. Bursts of events,
+ * e.g. from an editor saving via a temporary file, are collected until no new
+ * event has arrived for a short while, and then handled by a background job:
+ * <p>
+ * - If a .ref file has changed, the list is reloaded and applied as on startup,
+ *   i.e. only resources that are new or have changed are read. <br>
+ * - Else each changed preference file is re-read, and applied if its content
+ *   has changed since last applied. <br>
+ * <p>
+ * The resources are read and parsed into a private list in the background,
+ * leaving the shared list, see {@link StartupPlugin#getCommonPrefFiles(MultiStatus)},
+ * untouched until the prepared result is applied in the UI thread.
+ * <p>
+ * The watcher is owned by the plug-in, see {@link StartupPlugin#startFileWatcher(Display)}.
+ */
+public class CommonPrefFileWatcher implements Runnable {
+
+	private static final long DEBOUNCE_DELAY = 500; // milliseconds
+
+	private Display display;
+	private WatchService service;
+	private Thread thread;
+	private Map<Path, WatchKey> watched = new HashMap<Path, WatchKey>();
+
+	/**
+	 * @param display - display to apply the preferences in context of
+	 */
+	public CommonPrefFileWatcher(Display display) {
+		this.display = display;
+	}
+
+	/**
+	 * Start watching in a daemon thread
+	 *
+	 * @throws IOException if the platform doesn't support watching
+	 */
+	public void start() throws IOException {
+		service = FileSystems.getDefault().newWatchService();
+		thread = new Thread(this, "Common preferences file watcher"); //$NON-NLS-1$
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop watching. Any reload job already scheduled will still run.
+	 */
+	public void stop() {
+		try {
+			service.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Register the directories of the local preference files in the current
+	 * list, and the configuration directory. Directories already watched are
+	 * kept, also if no longer used, since watching is cheap.
+	 */
+	public void updateDirectories() {
+		updateDirectories(StartupPlugin.getDefault().getCommonPrefFiles(null));
+	}
+
+	/**
+	 * Register the directories of the local preference files in the list, and
+	 * the configuration directory
+	 *
+	 * @param prefFiles
+	 */
+	public synchronized void updateDirectories(CommonPrefEPFResources prefFiles) {
+		Set<File> dirs = new HashSet<File>();
+		String configLocation = StartupPlugin.getConfigurationLocation();
+		if (configLocation != null)
+			dirs.add(new File(configLocation));
+
+		for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();) {
+			File file = iter.next().getFile();
+			if (file != null && file.getAbsoluteFile().getParentFile() != null)
+				dirs.add(file.getAbsoluteFile().getParentFile());
+		}
+
+		for (File dir : dirs) {
+			if (!dir.isDirectory())
+				continue;
+			Path path = dir.toPath();
+			if (watched.containsKey(path))
+				continue;
+			try {
+				watched.put(path, path.register(service,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY,
+						StandardWatchEventKinds.ENTRY_DELETE));
+			} catch (IOException e) {
+				StartupPlugin.log(IStatus.WARNING, "Failed to watch " + dir.getPath() + " for changes", e);
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		updateDirectories();
+		try {
+			while (true) {
+				Set<File> changed = new HashSet<File>();
+				collect(service.take(), changed);
+
+				// Wait for the burst to settle
+				WatchKey key;
+				while ((key = service.poll(DEBOUNCE_DELAY, TimeUnit.MILLISECONDS)) != null)
+					collect(key, changed);
+
+				if (!changed.isEmpty())
+					new ReloadJob(changed).schedule();
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Stopped
+		} catch (InterruptedException e) {
+			// Stopped
+		}
+	}
+
+	// Add the files of the events to the set, and re-arm the key
+	private void collect(WatchKey key, Set<File> changed) {
+		Path dir = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// Events lost, treat as if the list itself has changed
+				changed.add(new File(dir.toFile(), StartupPlugin.LOCAL_PREF_FILE_REF));
+				continue;
+			}
+			changed.add(dir.resolve((Path) event.context()).toFile().getAbsoluteFile());
+		}
+		key.reset();
+	}
+
+	/**
+	 * Job reading the changed files in the background, and applying them in
+	 * the UI thread to have listeners react properly.
+	 */
+	private class ReloadJob extends Job {
+		private Set<File> changed;
+
+		ReloadJob(Set<File> changed) {
+			super("Reloading common preferences");
+			this.changed = changed;
+			setSystem(true);
+		}
+
+		public boolean belongsTo(Object family) {
+			return family == StartupPlugin.JOB_FAMILY;
+		}
+
+		protected IStatus run(IProgressMonitor monitor) {
+			boolean refChanged = false;
+			for (File file : changed) {
+				if (file.getName().endsWith(StartupPlugin.LOCAL_PREF_FILE_REF))
+					refChanged = true;
+			}
+
+			final MultiStatus status = CommonPrefsHelper.createLoadStatus();
+			if (refChanged)
+				return reloadList(status, monitor);
+
+			// Read the changed files into new resources, leaving the shared ones
+			// to be refreshed when applied
+			final List<CommonPrefEPFResource> sharedFiles = new ArrayList<CommonPrefEPFResource>();
+			final List<CommonPrefEPFResource> changedFiles = new ArrayList<CommonPrefEPFResource>();
+			CommonPrefEPFResources prefFiles = StartupPlugin.getDefault().getCommonPrefFiles(null);
+			for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();) {
+				CommonPrefEPFResource prefFile = iter.next();
+				File file = prefFile.getFile();
+				if (file == null || !changed.contains(file.getAbsoluteFile()))
+					continue;
+				CommonPrefEPFResource changedFile;
+				try {
+					changedFile = new CommonPrefEPFResource(
+							prefFile.getResourceName(), prefFile.getConfigKey(), prefFile.isForce());
+				} catch (Exception e) {
+					continue;
+				}
+				changedFile.getDigest();
+				try {
+					changedFile.setParsedPreferences(CommonPrefsHelper.readExportedPreferences(changedFile));
+				} catch (Exception e) {
+					// Reported when applying
+				}
+				sharedFiles.add(prefFile);
+				changedFiles.add(changedFile);
+			}
+			if (changedFiles.isEmpty())
+				return Status.OK_STATUS;
+
+			if (monitor.isCanceled() || display.isDisposed())
+				return Status.CANCEL_STATUS;
+
+			display.asyncExec(new Runnable() {
+				public void run() {
+					for (CommonPrefEPFResource prefFile : changedFiles)
+						CommonPrefsHelper.reloadPreferenceFile(prefFile, status);
+					for (CommonPrefEPFResource prefFile : sharedFiles)
+						prefFile.refresh();
+					if (status.getChildren().length > 0)
+						StartupPlugin.log(status);
+				}
+			});
+			return Status.OK_STATUS;
+		}
+
+		// A .ref file has changed, so load the whole list anew and prepare it
+		// as on startup. The shared list is replaced once applied.
+		private IStatus reloadList(final MultiStatus status, IProgressMonitor monitor) {
+			final CommonPrefEPFResources prefFiles = new CommonPrefEPFResources();
+			prefFiles.load(status);
+			updateDirectories(prefFiles);
+
+			final List<CommonPrefEPFResource> dueFiles = CommonPrefsHelper.prepareLoad(prefFiles, status, monitor);
+			final Properties drifted = CommonPrefsHelper.detectDrift(prefFiles, dueFiles, status);
+			final IExportedPreferences merged = CommonPrefsHelper.mergePreparedPreferences(dueFiles, status);
+			if (monitor.isCanceled() || display.isDisposed())
+				return Status.CANCEL_STATUS;
+
+			display.asyncExec(new Runnable() {
+				public void run() {
+					CommonPrefsHelper.applyPreparedPreferences(dueFiles, merged, status);
+					CommonPrefsHelper.applyDrift(drifted, status);
+					prefFiles.releaseContent();
+					StartupPlugin.getDefault().clearCommonPrefFiles();
+					if (status.getChildren().length > 0)
+						StartupPlugin.log(status);
+				}
+			});
+			return Status.OK_STATUS;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs;
+
+import java.net.HttpURLConnection;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.eclipse.common_prefs.core.CommonPrefEPFResource;
+import org.eclipse.common_prefs.core.CommonPrefEPFResources;
+import org.eclipse.common_prefs.core.CommonPrefHttpClient;
+import org.eclipse.common_prefs.core.CommonPrefsHelper;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.swt.widgets.Display;
+
+
+/**
+ * Background job polling the URL refs for updates during the session. On each
+ * poll the list is loaded into a private instance, making conditional requests
+ * so unchanged resources cost a 304 response only, and any URL ref whose
+ * content has changed is applied as in
+ * {@link CommonPrefsHelper#revalidatePreferences}, following the init/force
+ * semantics. The shared list, see {@link StartupPlugin#getCommonPrefFiles},
+ * is left as is.
+ * <p>
+ * The job reschedules itself with the interval set in
+ * {@link PreferenceInitializer#PREF_POLL_INTERVAL}, at most
+ * {@link #MAX_INTERVAL} minutes. After a poll where the host of a URL ref
+ * didn't respond, or responded with a server error, the interval is doubled
+ * for each consecutive failing poll, up to a day. A resource that doesn't
+ * exist on a responding host isn't a failure. A random jitter is added to
+ * avoid all clients started at the same time from polling the server at the
+ * same time.
+ * <p>
+ * The cost of the polls is accumulated, see {@link #getStatistics()}, to allow
+ * sizing the interval against the capacity of the server.
+ *
+ * @see StartupPlugin#startPolling(Display)
+ */
+public class CommonPrefPollJob extends Job {
+
+	/** Max poll interval that can be set, in minutes, i.e. a day */
+	public static final int MAX_INTERVAL = 24 * 60;
+
+	private static final int MAX_BACKOFF_SHIFT = 5; // max 32 times the interval
+	private static final long MAX_DELAY = MAX_INTERVAL * 60 * 1000L; // milliseconds, also with backoff
+	private static final double JITTER = 0.1; // +/- 10%
+
+	// Cost of all polls in the session
+	private static int pollCount;
+	private static CommonPrefHttpClient.Statistics pollCost;
+
+	private Display display;
+	private int failures;
+	private Random random = new Random();
+
+	/**
+	 * @param display - display to apply the preferences in context of
+	 */
+	public CommonPrefPollJob(Display display) {
+		super("Checking common preferences for updates");
+		this.display = display;
+		setSystem(true);
+	}
+
+	/**
+	 * Return the poll interval set, in milliseconds, limited to
+	 * {@link #MAX_INTERVAL}. 0 if polling is disabled.
+	 *
+	 * @return long
+	 */
+	public static long getInterval() {
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		int minutes = Math.min(MAX_INTERVAL, store.getInt(PreferenceInitializer.PREF_POLL_INTERVAL));
+		return Math.max(0, minutes) * 60 * 1000L;
+	}
+
+	/**
+	 * Schedule the next poll, using the interval with backoff and jitter
+	 * applied. Nothing is done if polling is disabled.
+	 */
+	public void scheduleNext() {
+		long interval = getInterval();
+		if (interval <= 0)
+			return;
+
+		long delay = Math.min(MAX_DELAY, interval << Math.min(failures, MAX_BACKOFF_SHIFT));
+		delay += (long) ((random.nextDouble() * 2 - 1) * JITTER * delay);
+		schedule(delay);
+	}
+
+	/**
+	 * Return a summary of the cost of the polls made in the session
+	 *
+	 * @return String
+	 */
+	public static synchronized String getStatistics() {
+		if (pollCount == 0)
+			return "No polls made in this session.";
+
+		long requests = pollCost.getRequestCount();
+		return "Polls made in this session: " + pollCount +
+				", requests: " + requests +
+				" (" + pollCost.getNotModifiedCount() + " not modified, " +
+				pollCost.getFailedCount() + " failed)" +
+				", received: " + (pollCost.getReceivedBytes() + 1023) / 1024 + " KB" +
+				", avg time per request: " + (requests > 0 ? pollCost.getRequestTime() / requests : 0) + " ms";
+	}
+
+	// Add the cost of a poll to the statistics
+	private static synchronized void record(CommonPrefHttpClient.Statistics cost) {
+		pollCost = (pollCost == null) ? cost : pollCost.plus(cost);
+		pollCount++;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	protected IStatus run(IProgressMonitor monitor) {
+		CommonPrefHttpClient client = CommonPrefHttpClient.getDefault();
+		CommonPrefHttpClient.Statistics before = client.getStatistics();
+
+		final MultiStatus status = CommonPrefsHelper.createLoadStatus();
+		final CommonPrefEPFResources oldFiles = StartupPlugin.getDefault().getCommonPrefFiles(null);
+		final CommonPrefEPFResources newFiles = new CommonPrefEPFResources();
+		newFiles.load(status);
+
+		// Back off only if a host failed, not if a resource is missing
+		boolean failed = false;
+		for (Iterator<CommonPrefEPFResource> iter = newFiles.iterator(); iter.hasNext();) {
+			CommonPrefEPFResource prefFile = iter.next();
+			if (prefFile.isRemote() && !prefFile.exists() && (prefFile.getResponseCode() == 0 ||
+					prefFile.getResponseCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR))
+				failed = true;
+		}
+		failures = failed ? failures + 1 : 0;
+
+		CommonPrefHttpClient.Statistics cost = client.getStatistics().since(before);
+		record(cost);
+		if (StartupPlugin.getDefault().isDebugging())
+			StartupPlugin.log(new Status(
+					IStatus.INFO, StartupPlugin.PLUGIN_ID,
+					"Common preferences poll made " + cost.getRequestCount() + " requests (" +
+					cost.getNotModifiedCount() + " not modified, " + cost.getFailedCount() +
+					" failed), received " + cost.getReceivedBytes() + " bytes in " +
+					cost.getRequestTime() + " ms"));
+
+		if (monitor.isCanceled() || display.isDisposed())
+			return Status.CANCEL_STATUS;
+
+		// Applying needs to be in the UI thread to have listeners react properly
+		display.asyncExec(new Runnable() {
+			public void run() {
+				CommonPrefsHelper.revalidatePreferences(oldFiles, newFiles, status);
+				newFiles.releaseContent();
+				if (status.getChildren().length > 0)
+					StartupPlugin.log(status);
+			}
+		});
+
+		scheduleNext();
+		return Status.OK_STATUS;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.core.runtime.jobs.Job#belongsTo(java.lang.Object)
+	 */
+	public boolean belongsTo(Object family) {
+		return family == StartupPlugin.JOB_FAMILY;
+	}
+}
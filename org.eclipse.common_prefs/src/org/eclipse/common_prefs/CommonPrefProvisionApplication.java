@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.common_prefs.core.CommonPrefEPFResources;
+import org.eclipse.common_prefs.core.CommonPrefProvisioner;
+import org.eclipse.common_prefs.core.CommonPrefsHelper;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+
+
+/**
+ * Application provisioning a set of workspaces with the common preferences in
+ * one run, without launching Eclipse on each of them, see
+ * {@link CommonPrefProvisioner}. Run as:
+ * <p>
+ * <code>
+ * eclipse -nosplash -application org.eclipse.common_prefs.provision -data &lt;scratch workspace&gt;
+ * [-offline] [-workspaces &lt;file&gt;] [&lt;workspace&gt; ...]
+ * </code>
+ * <p>
+ * The workspace directories are given as arguments, or one per line in the
+ * file given with <code>-workspaces</code>. The workspace given with
+ * <code>-data</code> is only used by the running instance, and isn't
+ * provisioned unless also listed. With <code>-offline</code> only the cached
+ * copies of the URL refs are used.
+ * <p>
+ * The status is printed and logged. The exit code is 0, or 1 if any workspace
+ * failed to be provisioned.
+ */
+public class CommonPrefProvisionApplication implements IApplication {
+
+	private static final String ARG_OFFLINE = "-offline"; //$NON-NLS-1$
+	private static final String ARG_WORKSPACES = "-workspaces"; //$NON-NLS-1$
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.equinox.app.IApplication#start(org.eclipse.equinox.app.IApplicationContext)
+	 */
+	public Object start(IApplicationContext context) throws Exception {
+		context.applicationRunning();
+		Object arguments = context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+		String[] args = (arguments instanceof String[]) ? (String[]) arguments : new String[0];
+
+		boolean offline = false;
+		List<File> workspaces = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (ARG_OFFLINE.equalsIgnoreCase(args[i]))
+				offline = true;
+			else if (ARG_WORKSPACES.equalsIgnoreCase(args[i]) && i + 1 < args.length)
+				readWorkspaces(new File(args[++i]), workspaces);
+			else if (!args[i].startsWith("-")) //$NON-NLS-1$
+				workspaces.add(new File(args[i]));
+		}
+		if (workspaces.isEmpty()) {
+			System.out.println("No workspaces to provision. Usage: [-offline] [-workspaces <file>] [<workspace> ...]");
+			return CommonPrefApplication.EXIT_ERROR;
+		}
+
+		MultiStatus status = CommonPrefsHelper.createLoadStatus();
+		CommonPrefEPFResources prefFiles = new CommonPrefEPFResources();
+		prefFiles.load(status, offline);
+		new CommonPrefProvisioner(prefFiles).provision(workspaces, status);
+
+		StartupPlugin.log(status);
+		CommonPrefApplication.print(status, ""); //$NON-NLS-1$
+		return (status.getSeverity() < IStatus.ERROR) ? EXIT_OK : CommonPrefApplication.EXIT_ERROR;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.equinox.app.IApplication#stop()
+	 */
+	public void stop() {
+		// Provisioning is short and not interruptible, so let it complete
+	}
+
+	// One workspace directory per line, skipping blank lines and # comments
+	private static void readWorkspaces(File file, List<File> workspaces) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8")); //$NON-NLS-1$
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#")) //$NON-NLS-1$
+					workspaces.add(new File(line));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -19,6 +19,9 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 	public static final String PREF_ENABLE_READ = "read_common_prefs"; //$NON-NLS-1$
 	public static final String PREF_SHOW_CURRENT = "show_current_prefs"; //$NON-NLS-1$	
 	public static final String PREF_WS_INITIALIZED = "ws_initialized"; //$NON-NLS-1$
+	public static final String PREF_STALE_WHILE_REVALIDATE = "stale_while_revalidate"; //$NON-NLS-1$
+	public static final String PREF_POLL_INTERVAL = "poll_interval"; //$NON-NLS-1$ minutes, 0 to disable
+	public static final String PREF_MERGED_APPLY = "merged_apply"; //$NON-NLS-1$
 	
 	/* (non-Javadoc)
 	 * @see org.eclipse.core.runtime.preferences.AbstractPreferenceInitializer#initializeDefaultPreferences()
@@ -28,5 +31,8 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 		store.setDefault(PREF_WS_INITIALIZED, false);
 		store.setDefault(PREF_ENABLE_READ, true);
 		store.setDefault(PREF_SHOW_CURRENT, true);
+		store.setDefault(PREF_STALE_WHILE_REVALIDATE, false);
+		store.setDefault(PREF_POLL_INTERVAL, 60);
+		store.setDefault(PREF_MERGED_APPLY, true);
 	}
 }	
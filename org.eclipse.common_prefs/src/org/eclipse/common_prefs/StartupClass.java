@@ -14,13 +14,11 @@ package org.eclipse.common_prefs;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.eclipse.common_prefs.core.CommonPrefsHelper;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.ui.IStartup;
 import org.eclipse.ui.IWorkbench;
-import org.eclipse.ui.IWorkbenchWindow;
 import org.eclipse.ui.PlatformUI;
 
 
@@ -56,44 +54,24 @@ public class StartupClass implements IStartup {
 		if (!readPrefs)
 			return;
 		
+		// If debugging, record an entry in the log. Since also gives a
+		// ms accurate timestamp it can be used for checking performance
+		if (StartupPlugin.getDefault().isDebugging())
+			StartupPlugin.log(new Status(
+					IStatus.INFO,
+					StartupPlugin.PLUGIN_ID,
+					"Common Preferences Plugin earlyStartup called."));				
+		
 		/*
-		 * Call to pref reading needs to be in context of code below since display
-		 * etc needs to be up when calling to have listeners react properly on updates.
+		 * Resources are accessed and parsed in a background job. Only applying is
+		 * done in the UI thread, since display etc needs to be up when calling to
+		 * have listeners react properly on updates.
 		 * 
 		 * NOTE: Hence will not Common Prefs code affect headless invocations.
+		 * For those, run the CommonPrefApplication instead.
 		 */
-		final IWorkbench workbench = PlatformUI.getWorkbench();
-		final boolean wsIsInitialized = store.getBoolean(PreferenceInitializer.PREF_WS_INITIALIZED);
-		workbench.getDisplay().asyncExec(new Runnable() {
-			public void run() {
-				IWorkbenchWindow window = workbench.getActiveWorkbenchWindow();
-				if (window == null)
-					return;
-
-				// If debugging, record an entry in the log. Since also gives a
-				// ms accurate timestamp it can be used for checking performance
-				if (StartupPlugin.getDefault().isDebugging())
-					StartupPlugin.log(new Status(
-							IStatus.INFO,
-							StartupPlugin.PLUGIN_ID,
-							"Common Preferences Plugin earlyStartup called."));				
-				
-				if (!wsIsInitialized){
-					
-					CommonPrefsHelper.saveDefaultPreferences();
-				}
-				
-				IStatus status = CommonPrefsHelper.loadPreferences();
-				if (status.getChildren().length > 0)
-					StartupPlugin.log(status);
-				
-				// If debugging, record an exit entry in the log
-				if (StartupPlugin.getDefault().isDebugging())
-					StartupPlugin.log(new Status(
-							IStatus.INFO,
-							StartupPlugin.PLUGIN_ID,
-							"Common Preferences Plugin earlyStartup finished."));
-			}
-		});
+		IWorkbench workbench = PlatformUI.getWorkbench();
+		boolean wsIsInitialized = store.getBoolean(PreferenceInitializer.PREF_WS_INITIALIZED);
+		new StartupLoadJob(workbench, wsIsInitialized).schedule();
 	}
 }
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.eclipse.common_prefs.core.CommonPrefEPFResource;
+import org.eclipse.common_prefs.core.CommonPrefEPFResources;
+import org.eclipse.common_prefs.core.CommonPrefFingerprint;
+import org.eclipse.common_prefs.core.CommonPrefLoadMetrics;
+import org.eclipse.common_prefs.core.CommonPrefSnapshot;
+import org.eclipse.common_prefs.core.CommonPrefsHelper;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.preferences.IExportedPreferences;
+import org.eclipse.ui.IWorkbench;
+
+
+/**
+ * Job loading the preference files on startup, see {@link StartupClass}. All
+ * access of the resources, i.e. probing, downloading and parsing, and the
+ * selection of what is due to be applied is done in this job. Only applying
+ * the already parsed preferences is done in the UI thread, so the workbench
+ * window stays responsive also with many remote resources configured. By
+ * default the resources are merged and applied in one step, see
+ * {@link PreferenceInitializer#PREF_MERGED_APPLY}. If the resources are
+ * unchanged since the last start they are applied from the compiled snapshot,
+ * see {@link CommonPrefSnapshot}, without being parsed. If nothing at all has
+ * changed since last applied, see {@link CommonPrefFingerprint}, nothing is
+ * parsed or applied, and only the URL refs are revalidated in the background.
+ * In either case, force resources that aren't applied are checked for keys
+ * changed since applied, and only those are reset, see
+ * {@link CommonPrefsHelper#detectDrift}.
+ * <p>
+ * The job can be canceled from the Progress view, in which case nothing is
+ * applied and the workspace isn't marked as initialized.
+ */
+public class StartupLoadJob extends Job {
+
+	private IWorkbench workbench;
+	private boolean wsIsInitialized;
+
+	/**
+	 * @param workbench - workbench to apply the preferences in context of
+	 * @param wsIsInitialized - if the workspace has been initialized before
+	 */
+	public StartupLoadJob(IWorkbench workbench, boolean wsIsInitialized) {
+		super("Loading common preferences");
+		this.workbench = workbench;
+		this.wsIsInitialized = wsIsInitialized;
+		setPriority(Job.SHORT);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	protected IStatus run(IProgressMonitor monitor) {
+		monitor.beginTask(getName(), IProgressMonitor.UNKNOWN);
+		try {
+			if (!wsIsInitialized)
+				CommonPrefsHelper.saveDefaultPreferences();
+
+			// Use the resources loaded since the plug-in was activated, if any
+			StartupPrefetchJob prefetchJob = StartupPlugin.getDefault().takePrefetchJob();
+			if (prefetchJob != null) {
+				try {
+					prefetchJob.join();
+				} catch (InterruptedException e) {
+					// Continue, loading below
+				}
+			}
+			if (prefetchJob == null || prefetchJob.getPrefFiles() == null) {
+				prefetchJob = new StartupPrefetchJob(StartupPlugin.getDefault().getPreferenceStore().getBoolean(
+						PreferenceInitializer.PREF_STALE_WHILE_REVALIDATE));
+				prefetchJob.run(monitor);
+			}
+			if (monitor.isCanceled())
+				return canceled();
+
+			// In stale-while-revalidate mode the cached copies are used and a
+			// background job picks up any newer versions
+			final boolean staleWhileRevalidate = prefetchJob.isCachedOnly();
+			final boolean unchanged = prefetchJob.isUnchanged();
+			final MultiStatus status = prefetchJob.getLoadStatus();
+			final CommonPrefEPFResources prefFiles = prefetchJob.getPrefFiles();
+
+			List<CommonPrefEPFResource> prepared = null;
+			CommonPrefSnapshot openedSnapshot = null;
+			IExportedPreferences mergedPrefs = null;
+			String newFingerprint = null;
+			if (!unchanged) {
+				prepared = CommonPrefsHelper.prepareLoad(prefFiles, status, monitor);
+				if (monitor.isCanceled())
+					return canceled();
+			}
+			
+			// Force resources not applied are checked for keys changed since applied
+			final Properties drifted = CommonPrefsHelper.detectDrift(prefFiles, prepared, status);
+			if (!unchanged) {
+				// Apply from the snapshot if the resources are unchanged, else parse
+				openedSnapshot = CommonPrefsHelper.openSnapshot(prefFiles, prepared);
+				if (openedSnapshot == null)
+					mergedPrefs = CommonPrefsHelper.mergePreparedPreferences(prepared, status);
+				newFingerprint = CommonPrefFingerprint.compute(prefFiles);
+			}
+			if (monitor.isCanceled() || workbench.getDisplay().isDisposed())
+				return canceled();
+
+			final List<CommonPrefEPFResource> dueFiles = prepared;
+			final CommonPrefSnapshot snapshot = openedSnapshot;
+			final IExportedPreferences merged = mergedPrefs;
+			final String fingerprint = newFingerprint;
+			workbench.getDisplay().asyncExec(new Runnable() {
+				public void run() {
+					if (workbench.getActiveWorkbenchWindow() == null) {
+						CommonPrefLoadMetrics.end();
+						return;
+					}
+
+					if (unchanged) {
+						status.add(new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID,
+								"Preference resources unchanged since last applied. Nothing to read."));
+					} else {
+						if (snapshot != null)
+							CommonPrefsHelper.applySnapshot(dueFiles, snapshot, status);
+						else
+							CommonPrefsHelper.applyPreparedPreferences(dueFiles, merged, status);
+						
+						// Allow skipping it all on next start, if successful
+						CommonPrefFingerprint.store(
+								status.getSeverity() < IStatus.ERROR ? fingerprint : null);
+					}
+					CommonPrefsHelper.applyDrift(drifted, status);
+					
+					// Report the timing, and keep it for comparing across sessions
+					CommonPrefLoadMetrics metrics = CommonPrefLoadMetrics.end();
+					if (metrics != null) {
+						status.add(metrics.toStatus());
+						saveMetrics(metrics);
+					}
+					if (status.getChildren().length > 0)
+						StartupPlugin.log(status);
+
+					if (staleWhileRevalidate)
+						new StartupRevalidateJob(workbench.getDisplay(), prefFiles).schedule();
+
+					// Pick up changes to local files and URL refs during the session
+					StartupPlugin.getDefault().startFileWatcher(workbench.getDisplay());
+					StartupPlugin.getDefault().startPolling(workbench.getDisplay());
+
+					// If debugging, record an exit entry in the log
+					if (StartupPlugin.getDefault().isDebugging())
+						StartupPlugin.log(new Status(
+								IStatus.INFO,
+								StartupPlugin.PLUGIN_ID,
+								"Common Preferences Plugin earlyStartup finished."));
+				}
+			});
+			
+			// Compile the changed resources, to skip parsing on the next start
+			if (!unchanged && !CommonPrefSnapshot.matches(prefFiles))
+				CommonPrefSnapshot.save(prefFiles);
+			
+			// The cached copies are kept for the revalidation to compare with
+			if (!staleWhileRevalidate)
+				prefFiles.releaseContent();
+			return Status.OK_STATUS;
+		} finally {
+			monitor.done();
+		}
+	}
+	
+	// Write the timing to file in the background, not in the UI thread
+	private static void saveMetrics(final CommonPrefLoadMetrics metrics) {
+		Job job = new Job("Saving common preferences load metrics") {
+			protected IStatus run(IProgressMonitor monitor) {
+				metrics.save();
+				return Status.OK_STATUS;
+			}
+
+			public boolean belongsTo(Object family) {
+				return family == StartupPlugin.JOB_FAMILY;
+			}
+		};
+		job.setSystem(true);
+		job.schedule();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.core.runtime.jobs.Job#belongsTo(java.lang.Object)
+	 */
+	public boolean belongsTo(Object family) {
+		return family == StartupPlugin.JOB_FAMILY;
+	}
+
+	// Nothing is applied, so drop the timing recorded
+	private IStatus canceled() {
+		CommonPrefLoadMetrics.end();
+		return Status.CANCEL_STATUS;
+	}
+}
@@ -13,21 +13,28 @@ package org.eclipse.common_prefs;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
 import org.eclipse.common_prefs.core.CommonPrefEPFResources;
+import org.eclipse.common_prefs.core.CommonPrefHostHealth;
+import org.eclipse.common_prefs.core.CommonPrefLoadMetrics;
 import org.eclipse.common_prefs.core.NetworkPrefResources;
 import org.eclipse.common_prefs.exportWizard.CommonPrefsExportPage;
 import org.eclipse.core.net.proxy.IProxyService;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.MultiStatus;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.jface.resource.ImageRegistry;
 import org.eclipse.osgi.service.datalocation.Location;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 import org.osgi.util.tracker.ServiceTracker;
@@ -47,9 +54,13 @@ public class StartupPlugin extends AbstractUIPlugin {
 	public static final String PLUGIN_ID = "org.eclipse.common_prefs"; //$NON-NLS-1$
 	private static StartupPlugin instance;
 
+	/** Family of the background jobs, canceled and joined when stopped */
+	public static final Object JOB_FAMILY = new Object();
+
 	public static final String DEFAULT_USER_INI_FILE = "common_preferences.ini";
 	public static final String DEFAULT_USER_DEF_FILE = "default_preferences.epf";
 	public static final String COMMON_PREF_OUT	= "common_preferences_out.txt";
+	public static final String COMMON_PREF_CACHE_DIR = "cache";
 	
 	public static final String LOCAL_PREF_FILE_REF = ".ref";
 
@@ -66,8 +77,10 @@ public class StartupPlugin extends AbstractUIPlugin {
 	public static final String PREF_FILE_EXIST_IMG = "preferences_exist.gif";//$NON-NLS-1$
 	public static final String PREF_FILE_NOEXIST_IMG = "preferences_no_exist.gif";//$NON-NLS-1$
 	
+	// Initial and min timeouts, adapted per host by CommonPrefHostHealth
 	public static final int URL_CONNECT_TIMEOUT = 500; // 1000; // milliseconds
 	public static final int URL_READ_TIMEOUT = 500; // 2000 // milliseconds
+	public static final int RESOURCE_LOAD_DEADLINE = 3000; // milliseconds, for all resources, at least
 	
 	private CommonPrefEPFResources commonPrefEPFResources;
 	
@@ -75,6 +88,12 @@ public class StartupPlugin extends AbstractUIPlugin {
 	
 	private NetworkPrefResources networkPrefResources;
 	
+	private CommonPrefFileWatcher fileWatcher;
+	
+	private CommonPrefPollJob pollJob;
+	
+	private StartupPrefetchJob prefetchJob;
+	
 	public StartupPlugin() {
 		instance = this;
 	}
@@ -151,6 +170,20 @@ public class StartupPlugin extends AbstractUIPlugin {
     	return getConfigurationLocation() + DEFAULT_USER_INI_FILE;	
     }
 
+    /**
+     * Return the folder holding the cached copies of remote preference resources.
+     * This is typically <eclipse install dir>/configuration/org.eclipse.common_prefs/cache
+     * 
+     * @return String or null if no configuration location
+     */
+    static public String getCacheLocation() {
+    	
+    	String location = getConfigurationLocation();
+    	if (location == null)
+    		return null;
+    	return location + COMMON_PREF_CACHE_DIR + File.separator;
+    }
+
     /**
      * Return the list of .ref files in the configuration directory
      * 
@@ -207,7 +240,7 @@ public class StartupPlugin extends AbstractUIPlugin {
      * @param status
      * @return
      */
-    public CommonPrefEPFResources getCommonPrefFiles(MultiStatus status) {
+    public synchronized CommonPrefEPFResources getCommonPrefFiles(MultiStatus status) {
     	
     	if (commonPrefEPFResources == null) {
     		commonPrefEPFResources = new CommonPrefEPFResources();
@@ -221,42 +254,143 @@ public class StartupPlugin extends AbstractUIPlugin {
      * to the {@link StartupPlugin#getCommonPrefFiles()} the values from disk will
      * be re-read.
      */
-    public void clearCommonPrefFiles() {
+    public synchronized void clearCommonPrefFiles() {
     	commonPrefEPFResources = null;
     }
     
     
     /**
-	 * ADD THIS METHOD FOR TESTING WITH ECLIPSE 3.5
+	 * Return the proxy service, or null if not available. The service is
+	 * tracked from the first call, so org.eclipse.core.net isn't loaded when
+	 * the plug-in is activated.
 	 * 
-	 * @return
+	 * @return IProxyService
 	 */
-	public IProxyService getProxyService() {
+	public synchronized IProxyService getProxyService() {
+		if (tracker == null) {
+			tracker = new ServiceTracker(getBundle().getBundleContext(), IProxyService.class.getName(), null);
+			tracker.open();
+		}
         return (IProxyService) tracker.getService();
 	}
 	
 	
 	/**
-	 * ADD THIS METHOD FOR TESTING WITH ECLIPSE 3.5
+	 * Return the network settings, captured from the proxy service on the
+	 * first call. Call {@link NetworkPrefResources#loadNetworkSettings()} to
+	 * capture the settings as they are now.
 	 * 
+	 * @return NetworkPrefResources
 	 */
-	public NetworkPrefResources getNetworkPrefResources() {
+	public synchronized NetworkPrefResources getNetworkPrefResources() {
+		if (networkPrefResources == null) {
+			networkPrefResources = new NetworkPrefResources();
+			networkPrefResources.loadNetworkSettings();
+		}
 		return networkPrefResources;
 	}
 
 
+	/**
+	 * Start watching the local preference files and the .ref files for changes,
+	 * applying changes during the session, see {@link CommonPrefFileWatcher}.
+	 * If already started, the watched directories are updated to match the
+	 * current list.
+	 * 
+	 * @param display - display to apply the preferences in context of
+	 */
+	public synchronized void startFileWatcher(Display display) {
+		if (fileWatcher != null) {
+			final CommonPrefFileWatcher watcher = fileWatcher;
+			Job job = new Job("Updating watched preference directories") {
+				protected IStatus run(IProgressMonitor monitor) {
+					watcher.updateDirectories();
+					return Status.OK_STATUS;
+				}
+
+				public boolean belongsTo(Object family) {
+					return family == JOB_FAMILY;
+				}
+			};
+			job.setSystem(true);
+			job.schedule();
+			return;
+		}
+		
+		try {
+			CommonPrefFileWatcher watcher = new CommonPrefFileWatcher(display);
+			watcher.start();
+			fileWatcher = watcher;
+		} catch (IOException e) {
+			log(IStatus.WARNING, "Failed to start watching preference files for changes", e);
+		}
+	}
+	
+	/**
+	 * Stop watching the preference files for changes
+	 */
+	public synchronized void stopFileWatcher() {
+		if (fileWatcher != null) {
+			fileWatcher.stop();
+			fileWatcher = null;
+		}
+	}
+
+	/**
+	 * Return the job loading the resources, started when the plug-in was
+	 * activated. The job is only returned once, since the loaded resources
+	 * are to be applied once.
+	 * 
+	 * @return StartupPrefetchJob or null if not started or already taken
+	 */
+	public synchronized StartupPrefetchJob takePrefetchJob() {
+		StartupPrefetchJob job = prefetchJob;
+		prefetchJob = null;
+		return job;
+	}
+	
+	/**
+	 * Start polling the URL refs for updates, see {@link CommonPrefPollJob}. If
+	 * already started, the polling is restarted using the current interval.
+	 * 
+	 * @param display - display to apply the preferences in context of
+	 */
+	public synchronized void startPolling(Display display) {
+		stopPolling();
+		pollJob = new CommonPrefPollJob(display);
+		pollJob.scheduleNext();
+	}
+	
+	/**
+	 * Stop polling the URL refs for updates
+	 */
+	public synchronized void stopPolling() {
+		if (pollJob != null) {
+			pollJob.cancel();
+			pollJob = null;
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#start(org.osgi.framework.BundleContext)
 	 */
 	public void start(BundleContext context) throws Exception {
+		long activateStart = System.nanoTime();
 		super.start(context);
 		
-		 tracker = new ServiceTracker(getBundle().getBundleContext(), IProxyService.class.getName(), null);
-         tracker.open();
-         
-         networkPrefResources = new NetworkPrefResources();
-         networkPrefResources.loadNetworkSettings();
+		// The proxy service and network settings are looked up when first
+		// needed, see getProxyService() and getNetworkPrefResources()
+		
+         // Start loading the resources right away, while the workbench starts
+         IPreferenceStore store = getPreferenceStore();
+         if (store.getBoolean(PreferenceInitializer.PREF_ENABLE_READ)) {
+        	 CommonPrefLoadMetrics.begin();
+        	 prefetchJob = new StartupPrefetchJob(
+        			 store.getBoolean(PreferenceInitializer.PREF_STALE_WHILE_REVALIDATE));
+        	 prefetchJob.schedule();
+         }
+         CommonPrefLoadMetrics.record(CommonPrefLoadMetrics.Phase.ACTIVATE, activateStart);
 
 	}
 
@@ -265,6 +399,27 @@ public class StartupPlugin extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		stopPolling();
+		stopFileWatcher();
+
+		// The jobs use the shared instance, so let them finish before cleared
+		synchronized (this) {
+			prefetchJob = null;
+		}
+		Job.getJobManager().cancel(JOB_FAMILY);
+		try {
+			Job.getJobManager().join(JOB_FAMILY, null);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		CommonPrefHostHealth.save();
+		synchronized (this) {
+			if (tracker != null) {
+				tracker.close();
+				tracker = null;
+			}
+		}
 		instance = null;
 		super.stop(context);
 	}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs;
+
+import org.eclipse.common_prefs.core.CommonPrefEPFResources;
+import org.eclipse.common_prefs.core.CommonPrefFingerprint;
+import org.eclipse.common_prefs.core.CommonPrefsHelper;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+
+/**
+ * Background job started when the plug-in is activated, see
+ * {@link StartupPlugin#start(org.osgi.framework.BundleContext)}. It loads the
+ * list, i.e. probes and downloads the resources, and parses them, while the
+ * workbench is starting. {@link StartupLoadJob} then only needs to apply the
+ * already parsed preferences, hiding most of the network latency.
+ * <p>
+ * In stale-while-revalidate mode the cached copies of the URL refs are loaded,
+ * see {@link PreferenceInitializer#PREF_STALE_WHILE_REVALIDATE}, else they are
+ * revalidated with conditional requests. If nothing has changed since last
+ * applied, see {@link CommonPrefFingerprint}, nothing more is done.
+ */
+public class StartupPrefetchJob extends Job {
+
+	private boolean cachedOnly;
+	private boolean unchanged;
+	private MultiStatus status;
+	private CommonPrefEPFResources prefFiles;
+
+	/**
+	 * @param cachedOnly - use only the cached copies of URL refs
+	 */
+	public StartupPrefetchJob(boolean cachedOnly) {
+		super("Loading common preferences");
+		this.cachedOnly = cachedOnly;
+		setSystem(true);
+	}
+
+	/**
+	 * Return if the cached copies of the URL refs were loaded
+	 *
+	 * @return boolean
+	 */
+	public boolean isCachedOnly() {
+		return cachedOnly;
+	}
+
+	/**
+	 * Return if the list is unchanged since last applied, see
+	 * {@link CommonPrefFingerprint}. The list returned then isn't parsed.
+	 *
+	 * @return boolean
+	 */
+	public boolean isUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * Return the loaded list, or null if the job hasn't completed
+	 *
+	 * @return CommonPrefEPFResources
+	 */
+	public CommonPrefEPFResources getPrefFiles() {
+		return prefFiles;
+	}
+
+	/**
+	 * Return the status recorded when loading, or null if the job hasn't
+	 * completed
+	 *
+	 * @return MultiStatus
+	 */
+	public MultiStatus getLoadStatus() {
+		return status;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	protected IStatus run(IProgressMonitor monitor) {
+		// The URL refs are revalidated with conditional requests, unless only
+		// the cached copies are to be used, and the list is loaded only once
+		MultiStatus loadStatus = CommonPrefsHelper.createLoadStatus();
+		CommonPrefEPFResources loadedFiles;
+		if (cachedOnly) {
+			loadedFiles = new CommonPrefEPFResources();
+			loadedFiles.load(loadStatus, true);
+		} else
+			loadedFiles = StartupPlugin.getDefault().getCommonPrefFiles(loadStatus);
+
+		// Nothing is parsed if unchanged since last applied
+		if (CommonPrefFingerprint.isUnchanged(loadedFiles))
+			unchanged = true;
+		else
+			CommonPrefsHelper.parsePreferences(loadedFiles);
+
+		status = loadStatus;
+		prefFiles = loadedFiles;
+		return Status.OK_STATUS;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.core.runtime.jobs.Job#belongsTo(java.lang.Object)
+	 */
+	public boolean belongsTo(Object family) {
+		return family == StartupPlugin.JOB_FAMILY;
+	}
+}
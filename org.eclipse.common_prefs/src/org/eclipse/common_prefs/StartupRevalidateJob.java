@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs;
+
+import org.eclipse.common_prefs.core.CommonPrefEPFResources;
+import org.eclipse.common_prefs.core.CommonPrefsHelper;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.swt.widgets.Display;
+
+
+/**
+ * Background job used when starting in stale-while-revalidate mode. On startup
+ * the cached copies of the URL refs are applied, see {@link StartupLoadJob}. This
+ * job then accesses the network and applies the changed keys of any URL ref
+ * where a newer version has arrived.
+ *
+ * @see PreferenceInitializer#PREF_STALE_WHILE_REVALIDATE
+ */
+public class StartupRevalidateJob extends Job {
+
+	private Display display;
+	private CommonPrefEPFResources cachedFiles;
+
+	/**
+	 * @param display - display to apply the preferences in context of
+	 * @param cachedFiles - the list applied from the cache on startup
+	 */
+	public StartupRevalidateJob(Display display, CommonPrefEPFResources cachedFiles) {
+		super("Revalidating common preferences");
+		this.display = display;
+		this.cachedFiles = cachedFiles;
+		setSystem(true);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	protected IStatus run(IProgressMonitor monitor) {
+
+		// Accessing the network is done here, in the background
+		final MultiStatus status = CommonPrefsHelper.createLoadStatus();
+		StartupPlugin.getDefault().clearCommonPrefFiles();
+		final CommonPrefEPFResources prefFiles = StartupPlugin.getDefault().getCommonPrefFiles(status);
+
+		if (monitor.isCanceled() || display.isDisposed())
+			return Status.CANCEL_STATUS;
+
+		// Applying needs to be in the UI thread to have listeners react properly
+		display.asyncExec(new Runnable() {
+			public void run() {
+				CommonPrefsHelper.revalidatePreferences(cachedFiles, prefFiles, status);
+				cachedFiles.releaseContent();
+				prefFiles.releaseContent();
+				if (status.getChildren().length > 0)
+					StartupPlugin.log(status);
+			}
+		});
+
+		return Status.OK_STATUS;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.core.runtime.jobs.Job#belongsTo(java.lang.Object)
+	 */
+	public boolean belongsTo(Object family) {
+		return family == StartupPlugin.JOB_FAMILY;
+	}
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+
+/**
+ * Stream reading the .epf members of a zip or jar archive, in archive order, as
+ * one preference file. The members are streamed one by one, separated by a
+ * newline, without extracting anything to disk. Other members, e.g. the
+ * manifest of a jar, are skipped.
+ * <p>
+ * Since a key in a later member overrides the same key in an earlier member,
+ * the archive order is the order in which the members are layered, as for
+ * separate entries in the list.
+ *
+ * @see CommonPrefResource#isArchive()
+ */
+public class CommonPrefArchiveInputStream extends InputStream {
+
+	private static final String MEMBER_SUFFIX = ".epf"; //$NON-NLS-1$
+
+	private ZipInputStream zip;
+	private boolean inMember;
+	private boolean separatorPending;
+
+	/**
+	 * @param input - the archive. Closed when this stream is closed.
+	 */
+	public CommonPrefArchiveInputStream(InputStream input) {
+		zip = new ZipInputStream(input);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return (n == -1) ? -1 : (b[0] & 0xff);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+
+		while (true) {
+			if (separatorPending) {
+				separatorPending = false;
+				b[off] = '\n';
+				return 1;
+			}
+			if (!inMember && !nextMember())
+				return -1;
+
+			int n = zip.read(b, off, len);
+			if (n != -1)
+				return n;
+
+			// End of member. Make sure the next one starts on a new line.
+			inMember = false;
+			separatorPending = true;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.InputStream#close()
+	 */
+	public void close() throws IOException {
+		zip.close();
+	}
+
+	// Position at the next .epf member. Return false if there are no more.
+	private boolean nextMember() throws IOException {
+		ZipEntry entry;
+		while ((entry = zip.getNextEntry()) != null) {
+			if (!entry.isDirectory() && entry.getName().toLowerCase().endsWith(MEMBER_SUFFIX)) {
+				inMember = true;
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -11,6 +11,8 @@
 
 package org.eclipse.common_prefs.core;
 
+import org.eclipse.core.runtime.preferences.IExportedPreferences;
+
 /**
  * Holding information about a resource (.epf) file
  * 
@@ -21,15 +23,56 @@ public class CommonPrefEPFResource extends CommonPrefResource {
 	private boolean isForce;
 	private String configKey;
 	private boolean isSelected;
+	private IExportedPreferences parsedPreferences;
 
 	public CommonPrefEPFResource(String resourceName,
 			String configKey,
 			boolean isForce) throws Exception {
-		super(resourceName, false, false);
+		this(resourceName, configKey, isForce, false);
+	}
+
+	/**
+	 * Create the resource. If cachedOnly is set, URL refs are not accessed,
+	 * see {@link CommonPrefResource#CommonPrefResource(String, boolean, boolean, boolean)}
+	 * 
+	 * @param resourceName
+	 * @param configKey
+	 * @param isForce
+	 * @param cachedOnly
+	 * @throws Exception
+	 */
+	public CommonPrefEPFResource(String resourceName,
+			String configKey,
+			boolean isForce,
+			boolean cachedOnly) throws Exception {
+		super(resourceName, false, false, cachedOnly);
 		this.configKey = configKey;
 		this.isForce = isForce;
 	}
 
+	// Create an unresolved resource, see createUnresolved
+	private CommonPrefEPFResource(String resourceName) {
+		super(resourceName);
+	}
+	
+	/**
+	 * Create an entry for a resource that could not be accessed, without
+	 * trying to access it. The entry is regarded as not existing.
+	 * 
+	 * @param resourceName
+	 * @param configKey
+	 * @param isForce
+	 * @return CommonPrefEPFResource
+	 */
+	public static CommonPrefEPFResource createUnresolved(String resourceName,
+			String configKey,
+			boolean isForce) {
+		CommonPrefEPFResource pf = new CommonPrefEPFResource(resourceName);
+		pf.configKey = configKey;
+		pf.isForce = isForce;
+		return pf;
+	}
+
 	public String getConfigKey() {
 		return configKey;
 	}
@@ -46,6 +89,29 @@ public class CommonPrefEPFResource extends CommonPrefResource {
 		this.isForce = isForce;
 	}	
 	
+	/**
+	 * Return the preferences if parsed in advance, see 
+	 * {@link CommonPrefsHelper#parsePreferences(CommonPrefEPFResources)}
+	 * 
+	 * @return IExportedPreferences or null if not parsed
+	 */
+	public IExportedPreferences getParsedPreferences() {
+		return parsedPreferences;
+	}
+	
+	public void setParsedPreferences(IExportedPreferences parsedPreferences) {
+		this.parsedPreferences = parsedPreferences;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.common_prefs.core.CommonPrefResource#refresh()
+	 */
+	public void refresh() {
+		super.refresh();
+		parsedPreferences = null;
+	}
+	
 	public boolean isSelected() {
 		return isSelected;
 	}
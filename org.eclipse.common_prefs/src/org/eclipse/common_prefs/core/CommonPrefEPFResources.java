@@ -11,9 +11,23 @@
 
 package org.eclipse.common_prefs.core;
 
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.eclipse.common_prefs.StartupPlugin;
 import org.eclipse.core.runtime.MultiStatus;
@@ -48,6 +62,10 @@ import org.eclipse.core.runtime.Status;
  * </code>
  * 		ericsson.common_prefs.0 = init|&lt some path ...&gt
  * <code>
+ * <p>
+ * The numbering may have gaps, e.g. <key>.0, <key>.5 and <key>.10 in
+ * config.ini, and has no upper limit. Only the keys present are read, in
+ * the order of their numbers.
  * 
  * Added code for fixing network issue in eclipse 3.5
  * 
@@ -59,11 +77,11 @@ public class CommonPrefEPFResources {
 	private static final String COMMON_PREFIX_READ = "ericsson.common_prefs.";
 	
 	/**
-	 * Max no of pref files to be defined. Reason for defining this is to allow a chain
-	 * with holes, i.e. having <key>.0, <key>.5 and <key>.10 defined in config.ini allowing
-	 * for user addition in between.
+	 * Max no of threads used for creating the resources when loading. Each thread
+	 * may block on a network connect, so the list loads in about the time of the
+	 * slowest resource instead of the sum of them.
 	 */
-	private static final int MAX_PREF_FILES = 32;
+	private static final int MAX_LOAD_THREADS = 8;
 	
 	// private CommonPrefFile[] prefFiles;
 	private ArrayList<CommonPrefEPFResource> prefFiles;
@@ -216,25 +234,11 @@ public class CommonPrefEPFResources {
 			}
 		}
 		
-		// Iterate over all entries since if an item that was is in the store was
-		// removed we should put null in the store to mark as removed.
-		for (int i = 0; i < MAX_PREF_FILES; i++) {
-			String inxKey = new Integer(i).toString();
-			String initKey = COMMON_PREFIX_READ + inxKey;
-			
-			// If no user entries or index out of bounds, remove entry if existing
-			if (!hasUserEntries || i > prefFiles.size() - 1) {
-				// Temporary comment this code for testing with eclipse 3.5
-				/*if (store.contains(initKey)) 
-					store.setToDefault(initKey);*/ // Remove entry
-				// End
-				
-				// ADD THIS CODE FOR TESTING WITH ECLIPSE 3.5
-				if (properties.containsKey(initKey))
-					setToDefault(initKey, properties);
-				// END
-				continue;
-			}
+		// The whole file is rewritten, so entries not written here are removed.
+		// If no user entries, nothing is written.
+		int noOfEntries = hasUserEntries ? prefFiles.size() : 0;
+		for (int i = 0; i < noOfEntries; i++) {
+			String initKey = COMMON_PREFIX_READ + i;
 			
 			// Add entry - either referring to config, or direct entry
 			CommonPrefRefEntry prefEntry = new CommonPrefRefEntry(prefFiles.get(i));
@@ -272,11 +276,42 @@ public class CommonPrefEPFResources {
 	
 	
 	
+	/**
+	 * An entry read from the configuration or the user's preferences, waiting
+	 * for its resource to be created by the loader. Entries of type "config"
+	 * in the user's preferences only refer to a configuration entry and have
+	 * no resource of their own.
+	 */
+	private class PendingEntry {
+		private String configKey;
+		private CommonPrefRefEntry prefEntry;
+		private Future<CommonPrefEPFResource> future;
+	}
+	
 	/**
 	 * Retrieve the file locations for the preference files. For more info on
 	 * format, please see comment in {@link CommonPrefEPFResources}
+	 * <p>
+	 * Creating a resource may block on network access, so all resources are
+	 * created in parallel, bounded by {@link #MAX_LOAD_THREADS} and with one
+	 * overall deadline, at least {@link StartupPlugin#RESOURCE_LOAD_DEADLINE}
+	 * and long enough for the timeouts adapted to the hosts. URL refs not
+	 * loaded by then are taken from the cache. The order of the list is the
+	 * same as if loading them one by one.
 	 */
 	public void load(MultiStatus status) {
+		load(status, false);
+	}
+	
+	/**
+	 * Retrieve the file locations for the preference files. If cachedOnly is set
+	 * URL refs are not accessed, instead the copy from the last successful fetch
+	 * is used. See {@link CommonPrefResourceCache}.
+	 * 
+	 * @param status
+	 * @param cachedOnly
+	 */
+	public void load(MultiStatus status, boolean cachedOnly) {
 		
 		// Create a list with entries from the local preferences and the items read from
 		// the config.ini file. For the entries from the config.ini file we need to save
@@ -284,27 +319,19 @@ public class CommonPrefEPFResources {
 	
 		// 1. Retrieve the keys from the config.ini file and add them first in list
 		// Also check for any local refs added, should be treated as config entries.
-		
-		// Temporary comment out this code for testing the code below with eclipse 3.5
-		//Preferences localRefs = CommonPrefsHelper.readLocalPreferencesEntries(status);
-		// End
-		
-		// ADD THIS CODE FOR TESTING WITH ECLIPSE 3.5
+		ArrayList<PendingEntry> configEntries = new ArrayList<PendingEntry>();
+		long refsStart = System.nanoTime();
 		Properties localRefs = CommonPrefsHelper.readLocalPreferencesEntries(status);
-		// END
+		CommonPrefLoadMetrics.record(CommonPrefLoadMetrics.Phase.REFS, refsStart);
 		
-		for (int i = 0; i < MAX_PREF_FILES; i++) {
-			
-			String inxKey = new Integer(i).toString();
-			String configKey = COMMON_PREFIX_READ + inxKey;
-			
-			// Temporary comment out this code for testing the code below with eclipse 3.5
-			//String entry = (localRefs != null)? localRefs.getString(configKey): ""; // returns value or ""
-			// End
+		long entriesStart = System.nanoTime();
+		TreeMap<Integer, String> configKeys = new TreeMap<Integer, String>();
+		if (localRefs != null)
+			addEntryKeys(localRefs.stringPropertyNames(), configKeys);
+		addEntryKeys(System.getProperties().stringPropertyNames(), configKeys);
+		for (String configKey : configKeys.values()) {
 			
-			// ADD THIS CODE FOR TESTING WITH ECLIPSE 3.5
-			String entry = (localRefs != null)? localRefs.getProperty(configKey): ""; // returns value or ""
-			// END
+			String entry = (localRefs != null)? localRefs.getProperty(configKey, ""): ""; // returns value or ""
 			
 			if (entry.length() == 0) {
 				entry = System.getProperty(configKey); // returns value or null
@@ -312,88 +339,222 @@ public class CommonPrefEPFResources {
 					continue;
 			}
 			
-			CommonPrefEPFResource pf = null;
-			try {
-				CommonPrefRefEntry prefEntry = new CommonPrefRefEntry(entry, configKey);
-				pf = new CommonPrefEPFResource(prefEntry.value, configKey, prefEntry.isForce);
-				
-				if (!pf.exists() && status != null)
-					status.add(new Status(
-							Status.WARNING,
-							StartupPlugin.PLUGIN_ID,
-							"Failed to access " + pf.getResourceName()));
-			} catch (Exception e) {
-				if (status != null)
-					status.add(new Status(Status.WARNING, StartupPlugin.PLUGIN_ID, e.getMessage(), e));
-				continue;
-			}			
-			
-			
-			prefFiles.add(pf);
+			PendingEntry pending = createPendingEntry(entry, configKey, configKey, status);
+			if (pending != null)
+				configEntries.add(pending);
 		}
 		
 		// 2. Add the keys from the user's preferences. If a "config" entry is found, that
 		// entry will be moved to the position of the user pref found.
-		
-		// Temporary comment out this code for testing the code below with eclipse 3.5
-		//Preferences store = CommonPrefsHelper.readUserPreferencesEntries(status);	
-		// End
-		
-		// ADD THIS CODE FOR TESTING WITH ECLIPSE 3.5
+		ArrayList<PendingEntry> userEntries = new ArrayList<PendingEntry>();
 		Properties store = CommonPrefsHelper.readUserPreferencesEntries(status);	
-		// END
 		
 		if (store != null) {
 			
-			for (int i = 0; i < MAX_PREF_FILES; i++) {
-				String inxKey = new Integer(i).toString();
-				String initKey = COMMON_PREFIX_READ + inxKey;
-				
-				// Temporary comment this code for testing with eclipse 3.5 
-				/*if (!store.contains(initKey))
-					continue;
-				String entry = store.getString(initKey);*/
-				// End temporary
-				
-				// ADD THIS CODE FOR TESTING WITH ECLIPSE 3.5
-				if (!store.containsKey(initKey))
-					continue;
-				
+			TreeMap<Integer, String> userKeys = new TreeMap<Integer, String>();
+			addEntryKeys(store.stringPropertyNames(), userKeys);
+			for (String initKey : userKeys.values()) {
 				String entry = store.getProperty(initKey);
-				// END
-	
-				CommonPrefEPFResource pf = null;
-				try {
-					CommonPrefRefEntry prefEntry = new CommonPrefRefEntry(entry, initKey);
-					
-					// If the type is "config", then find the already added entry and move it
-					// to the end of the list. OK not to find - means config.ini key is removed
-					if (prefEntry.isConfig) {
-						for (CommonPrefEPFResource pfRef : prefFiles) {
-							if (pfRef.isConfig() && pfRef.getConfigKey().compareTo(prefEntry.value) == 0) {
-								prefFiles.remove(pfRef);
-								prefFiles.add(pfRef);
-								break; // exit loop
-							}	
-						}
-						continue; // config.ini key not found. Bail out				
-					} 					
-					
-					pf = new CommonPrefEPFResource(prefEntry.value, null, prefEntry.isForce);
-					if (!pf.exists() && status != null)
-						status.add(new Status(
-								Status.WARNING,
-								StartupPlugin.PLUGIN_ID,
-								"Failed to access " + pf.getResourceName()));					
-				} catch (Exception e) {
-					if (status != null)
-						status.add(new Status(Status.WARNING, StartupPlugin.PLUGIN_ID, e.getMessage(), e));
-					continue;
-				}				
-	
+				PendingEntry pending = createPendingEntry(entry, initKey, null, status);
+				if (pending != null)
+					userEntries.add(pending);
+			}
+		}
+		
+		CommonPrefLoadMetrics.record(CommonPrefLoadMetrics.Phase.ENTRIES, entriesStart);
+		
+		// 3. Create all resources in parallel
+		ArrayList<PendingEntry> allEntries = new ArrayList<PendingEntry>(configEntries);
+		allEntries.addAll(userEntries);
+		startLoad(allEntries, cachedOnly);
+		
+		// 4. Collect the resources in list order
+		long deadline = System.currentTimeMillis() + getLoadDeadline(allEntries);
+		for (PendingEntry pending : configEntries) {
+			CommonPrefEPFResource pf = waitForLoad(pending, deadline, status);
+			if (pf != null)
 				prefFiles.add(pf);
+		}
+		for (PendingEntry pending : userEntries) {
+			
+			// If the type is "config", then find the already added entry and move it
+			// to the end of the list. OK not to find - means config.ini key is removed
+			if (pending.prefEntry.isConfig) {
+				for (CommonPrefEPFResource pfRef : prefFiles) {
+					if (pfRef.isConfig() && pfRef.getConfigKey().compareTo(pending.prefEntry.value) == 0) {
+						prefFiles.remove(pfRef);
+						prefFiles.add(pfRef);
+						break; // exit loop
+					}	
+				}
+				continue; // config.ini key not found. Bail out				
 			}
+			
+			CommonPrefEPFResource pf = waitForLoad(pending, deadline, status);
+			if (pf != null)
+				prefFiles.add(pf);
+		}
+		
+		// 5. Keep what was learned about the hosts for the next session
+		CommonPrefHostHealth.save();
+	}
+	
+	// The time to wait for the resources, long enough for a request to the
+	// slowest of the hosts with its adapted timeout, see CommonPrefHostHealth
+	private static long getLoadDeadline(List<PendingEntry> entries) {
+		long deadline = StartupPlugin.RESOURCE_LOAD_DEADLINE;
+		for (PendingEntry pending : entries) {
+			if (pending.future != null)
+				deadline = Math.max(deadline, CommonPrefHostHealth.getRequestTime(pending.prefEntry.value));
 		}
+		return deadline;
+	}
+	
+	// Add the entry keys among the keys, by their number. Keys that aren't
+	// entries, e.g. with a number that isn't canonical, are skipped.
+	private static void addEntryKeys(Set<String> keys, Map<Integer, String> entryKeys) {
+		for (String key : keys) {
+			int index = getEntryIndex(key);
+			if (index >= 0)
+				entryKeys.put(Integer.valueOf(index), key);
+		}
+	}
+	
+	// Return the number of an entry key, e.g. 5 for ericsson.common_prefs.5,
+	// or -1 if not an entry key
+	private static int getEntryIndex(String key) {
+		if (!key.startsWith(COMMON_PREFIX_READ))
+			return -1;
+		String number = key.substring(COMMON_PREFIX_READ.length());
+		if (number.length() == 0 || number.length() > 9 || (number.length() > 1 && number.charAt(0) == '0'))
+			return -1;
+		for (int i = 0; i < number.length(); i++) {
+			if (number.charAt(i) < '0' || number.charAt(i) > '9')
+				return -1;
+		}
+		return Integer.parseInt(number);
+	}
+	
+	// Parse the entry. If failing, report and return null
+	private PendingEntry createPendingEntry(String entry, String key, String configKey, MultiStatus status) {
+		try {
+			PendingEntry pending = new PendingEntry();
+			pending.prefEntry = new CommonPrefRefEntry(entry, key);
+			pending.configKey = configKey;
+			return pending;
+		} catch (Exception e) {
+			if (status != null)
+				status.add(new Status(Status.WARNING, StartupPlugin.PLUGIN_ID, e.getMessage(), e));
+			return null;
+		}
+	}
+	
+	// Submit the creation of the resources to a bounded pool of daemon threads.
+	// The pool is shut down directly, so threads end when the last task is done.
+	private void startLoad(List<PendingEntry> entries, final boolean cachedOnly) {
+		int noOfTasks = 0;
+		for (PendingEntry pending : entries) {
+			if (!pending.prefEntry.isConfig || pending.configKey != null)
+				noOfTasks++;
+		}
+		if (noOfTasks == 0)
+			return;
+		
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(noOfTasks, MAX_LOAD_THREADS),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Common Preferences resource loader"); //$NON-NLS-1$
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		for (final PendingEntry pending : entries) {
+			// User entries referring to a config entry have no own resource
+			if (pending.prefEntry.isConfig && pending.configKey == null)
+				continue;
+			
+			pending.future = executor.submit(new Callable<CommonPrefEPFResource>() {
+				public CommonPrefEPFResource call() throws Exception {
+					long start = System.nanoTime();
+					CommonPrefEPFResource pf;
+					try {
+						pf = new CommonPrefEPFResource(
+								pending.prefEntry.value, pending.configKey, pending.prefEntry.isForce,
+								cachedOnly);
+					} catch (Exception e) {
+						CommonPrefLoadMetrics.recordResource(CommonPrefEPFResource.createUnresolved(
+								pending.prefEntry.value, pending.configKey, pending.prefEntry.isForce), start);
+						throw e;
+					}
+					CommonPrefLoadMetrics.recordResource(pf, start);
+					return pf;
+				}
+			});
+		}
+		executor.shutdown();
+	}
+	
+	/**
+	 * Wait for the resource of the entry to be created. If failing, report and
+	 * return null. If the deadline passes, the cached copy of a URL ref is
+	 * used, see {@link CommonPrefResourceCache}. Without one the entry is kept
+	 * in the list as a non existing resource, so it's not lost when saving the
+	 * list.
+	 */
+	private CommonPrefEPFResource waitForLoad(PendingEntry pending, long deadline, MultiStatus status) {
+		CommonPrefEPFResource pf = null;
+		try {
+			long timeout = Math.max(0, deadline - System.currentTimeMillis());
+			pf = pending.future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			pending.future.cancel(true);
+			pf = loadCached(pending);
+			if (status != null)
+				status.add(new Status(
+						Status.WARNING,
+						StartupPlugin.PLUGIN_ID,
+						"Timed out accessing " + pf.getResourceName() +
+						(pf.exists() ? ", using the cached copy" : ""))); //$NON-NLS-1$
+			return pf;
+		} catch (ExecutionException e) {
+			if (status != null)
+				status.add(new Status(Status.WARNING, StartupPlugin.PLUGIN_ID,
+						e.getCause().getMessage(), e.getCause()));
+			return null;
+		} catch (InterruptedException e) {
+			pending.future.cancel(true);
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		
+		if (!pf.exists() && status != null)
+			status.add(new Status(
+					Status.WARNING,
+					StartupPlugin.PLUGIN_ID,
+					"Failed to access " + pf.getResourceName()));
+		return pf;
+	}
+	
+	// Create the resource of an http(s) entry from the cached copy, without
+	// network access. Unresolved if there is none, or for other entries.
+	private static CommonPrefEPFResource loadCached(PendingEntry pending) {
+		String protocol = null;
+		try {
+			protocol = new URL(pending.prefEntry.value.trim()).getProtocol();
+		} catch (MalformedURLException e) {
+			// A file path
+		}
+		if ("http".equals(protocol) || "https".equals(protocol)) { //$NON-NLS-1$ //$NON-NLS-2$
+			try {
+				return new CommonPrefEPFResource(
+						pending.prefEntry.value, pending.configKey, pending.prefEntry.isForce, true);
+			} catch (Exception e) {
+				// Unresolved below
+			}
+		}
+		return CommonPrefEPFResource.createUnresolved(
+				pending.prefEntry.value, pending.configKey, pending.prefEntry.isForce);
 	}
 	
 	
@@ -507,6 +668,15 @@ public class CommonPrefEPFResources {
 		return move(pfMov, moveDown, true);
 	}
 	
+	/**
+	 * Drop the bodies of the URL refs once applied, see
+	 * {@link CommonPrefResource#releaseContent()}
+	 */
+	public void releaseContent() {
+		for (CommonPrefEPFResource pf : prefFiles)
+			pf.releaseContent();
+	}
+	
 	/**
 	 * Implementation of Iterator interface. The remove() method
 	 * should not be called here - thus not implemented.
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.eclipse.common_prefs.PreferenceInitializer;
+import org.eclipse.common_prefs.StartupPlugin;
+import org.eclipse.jface.preference.IPreferenceStore;
+
+
+/**
+ * Fingerprint of everything deciding what is applied on startup: the
+ * configuration area, which the configuration scope preferences are applied
+ * to, the effective list of entries, the .ref files and the user ini they are
+ * read from, and the digest of the content of each resource, see
+ * {@link CommonPrefResource#getDigest()}. Validators alone aren't enough,
+ * since a server may send neither ETag nor Last-Modified, and a file may be
+ * changed keeping its size within the timestamp granularity.
+ * <p>
+ * The fingerprint is stored when the list has been applied successfully. On
+ * the next start it's computed once the URL refs are revalidated with
+ * conditional requests, or in stale-while-revalidate mode from the cached
+ * copies, which are then revalidated in the background. If it's unchanged
+ * nothing needs to be parsed or applied.
+ */
+public class CommonPrefFingerprint {
+
+	// Key in the plug-in preference store
+	static final String FINGERPRINT_KEY = "applied_fingerprint"; //$NON-NLS-1$
+	private static final String FORMAT = "1"; //$NON-NLS-1$
+
+	private CommonPrefFingerprint() {
+		// All-static
+	}
+
+	/**
+	 * Compute the fingerprint of the list. Null if it can't be decided, e.g.
+	 * if a URL ref couldn't be accessed or its content couldn't be read.
+	 *
+	 * @param prefFiles
+	 * @return String
+	 */
+	public static String compute(CommonPrefEPFResources prefFiles) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+		StringBuilder input = new StringBuilder(FORMAT).append('\n');
+
+		// The installation, e.g. when launched with another than provisioned with
+		input.append(StartupPlugin.getConfigurationLocation()).append('\n');
+
+		// The files the entries are read from
+		File[] refFiles = StartupPlugin.getLocalReferenceFiles();
+		if (refFiles != null) {
+			Arrays.sort(refFiles);
+			for (File refFile : refFiles)
+				appendFile(input, refFile);
+		}
+		appendFile(input, new File(StartupPlugin.getDefaultUserPrefIniFile()));
+
+		// The effective entries, including those from system properties
+		for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();) {
+			CommonPrefEPFResource prefFile = iter.next();
+			input.append(prefFile.getResourceName()).append('|')
+				.append(prefFile.isForce()).append('|')
+				.append(prefFile.getConfigKey()).append('|');
+			if (prefFile.exists()) {
+				// The content itself, since validators may be missing or too coarse
+				String digest = prefFile.getDigest();
+				if (digest == null)
+					return null;
+				input.append(digest);
+			} else if (prefFile.isRemote())
+				return null;
+			else
+				input.append("missing"); //$NON-NLS-1$
+			input.append('\n');
+		}
+
+		try {
+			return CommonPrefResource.toHexString(md.digest(input.toString().getBytes("UTF-8"))); //$NON-NLS-1$
+		} catch (IOException e) {
+			// UTF-8 is always supported
+			return null;
+		}
+	}
+
+	/**
+	 * Check if the list is unchanged since last applied. Always false if the
+	 * workspace isn't initialized.
+	 *
+	 * @param prefFiles
+	 * @return boolean
+	 */
+	public static boolean isUnchanged(CommonPrefEPFResources prefFiles) {
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		if (!store.getBoolean(PreferenceInitializer.PREF_WS_INITIALIZED) || !store.contains(FINGERPRINT_KEY))
+			return false;
+		String fingerprint = compute(prefFiles);
+		return fingerprint != null && fingerprint.equals(store.getString(FINGERPRINT_KEY));
+	}
+
+	/**
+	 * Store the fingerprint as the one of the list last applied. If null, any
+	 * fingerprint stored is removed, so the list is fully loaded on next start.
+	 *
+	 * @param fingerprint - as returned by {@link #compute(CommonPrefEPFResources)}
+	 */
+	public static void store(String fingerprint) {
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		if (fingerprint == null)
+			store.setToDefault(FINGERPRINT_KEY);
+		else
+			store.setValue(FINGERPRINT_KEY, fingerprint);
+	}
+
+	private static void appendFile(StringBuilder input, File file) {
+		input.append(file.getPath()).append('|');
+		if (file.exists())
+			input.append(file.lastModified()).append('|').append(file.length());
+		else
+			input.append("missing"); //$NON-NLS-1$
+		input.append('\n');
+	}
+}
@@ -0,0 +1,403 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import org.eclipse.common_prefs.StartupPlugin;
+import org.eclipse.core.runtime.IPath;
+
+
+/**
+ * Health of a host serving remote preference resources. The latency of the
+ * latest successful requests is recorded, and the timeout used for the host is
+ * set from a high percentile of those. A request that times out doubles the
+ * timeout, up to a max value.
+ * <p>
+ * After a number of consecutive failures, where a 5xx response counts as a
+ * failure, the circuit is opened, and requests to the host fail fast without
+ * connecting. When the open period has passed a single trial request is let
+ * through, and other requests wait for its outcome. If it succeeds the circuit
+ * is closed, else it is opened again for a doubled period.
+ * <p>
+ * The state of all hosts is kept in the plug-in state location, so a startup
+ * after an outage uses what was learned in the previous session.
+ *
+ * @see CommonPrefHttpClient
+ */
+public class CommonPrefHostHealth {
+
+	private static final String HEALTH_FILE = "host_health.properties"; //$NON-NLS-1$
+
+	private static final int MAX_SAMPLES = 32;
+	private static final double TIMEOUT_PERCENTILE = 0.9;
+	private static final int TIMEOUT_FACTOR = 4;
+	private static final int MIN_TIMEOUT = StartupPlugin.URL_CONNECT_TIMEOUT; // milliseconds
+	private static final int MAX_TIMEOUT = 8000; // milliseconds
+
+	private static final int FAILURE_THRESHOLD = 3;
+	private static final long MIN_OPEN_PERIOD = 60 * 1000L; // milliseconds
+	private static final long MAX_OPEN_PERIOD = 60 * 60 * 1000L; // milliseconds
+
+	private static Map<String, CommonPrefHostHealth> hosts;
+	private static volatile boolean dirty;
+
+	private String hostKey;
+	private long[] samples = new long[MAX_SAMPLES];
+	private int sampleCount;
+	private int nextSample;
+	private int timeout = MIN_TIMEOUT;
+	private int consecutiveFailures;
+	private long openUntil;
+	private long openPeriod = MIN_OPEN_PERIOD;
+	private boolean trialInProgress;
+
+	private CommonPrefHostHealth(String hostKey) {
+		this.hostKey = hostKey;
+	}
+
+	/**
+	 * Return the health of the host serving the URL
+	 *
+	 * @param url
+	 * @return CommonPrefHostHealth
+	 */
+	public static synchronized CommonPrefHostHealth forURL(URL url) {
+		if (hosts == null)
+			hosts = load();
+
+		String hostKey = getHostKey(url);
+		CommonPrefHostHealth health = hosts.get(hostKey);
+		if (health == null) {
+			health = new CommonPrefHostHealth(hostKey);
+			hosts.put(hostKey, health);
+		}
+		return health;
+	}
+
+	/**
+	 * Check if the circuit of the host serving the resource is open, i.e. if
+	 * access will fail without trying. Always false for file resources.
+	 *
+	 * @param resourceName
+	 * @return boolean
+	 */
+	public static boolean isBlocked(String resourceName) {
+		try {
+			URL url = new URL(resourceName.trim());
+			if (url.getHost() == null || url.getHost().length() == 0)
+				return false;
+			return forURL(url).isOpen();
+		} catch (MalformedURLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return how long a request for the resource may take with the current
+	 * timeout of the host serving it, i.e. to connect and to read. 0 for file
+	 * resources.
+	 *
+	 * @param resourceName
+	 * @return long - milliseconds
+	 */
+	public static long getRequestTime(String resourceName) {
+		try {
+			URL url = new URL(resourceName.trim());
+			if (url.getHost() == null || url.getHost().length() == 0)
+				return 0;
+			return 2L * forURL(url).getTimeout();
+		} catch (MalformedURLException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Let the next request to the host serving the resource through, even if
+	 * the circuit is open, e.g. when the user explicitly asks for the resource
+	 * to be validated. The request is made as a trial request, so if it fails
+	 * the circuit is opened again. Nothing is done for file resources.
+	 *
+	 * @param resourceName
+	 */
+	public static void allowTrial(String resourceName) {
+		try {
+			URL url = new URL(resourceName.trim());
+			if (url.getHost() == null || url.getHost().length() == 0)
+				return;
+			CommonPrefHostHealth health = forURL(url);
+			synchronized (health) {
+				health.openUntil = 0;
+			}
+		} catch (MalformedURLException e) {
+		}
+	}
+
+	/**
+	 * Save the state of all hosts to the plug-in state location, if changed
+	 * since loaded or last saved.
+	 */
+	public static synchronized void save() {
+		if (hosts == null || !dirty)
+			return;
+		File file = getHealthFile();
+		if (file == null)
+			return;
+
+		Properties props = new Properties();
+		for (Iterator<CommonPrefHostHealth> iter = hosts.values().iterator(); iter.hasNext();) {
+			CommonPrefHostHealth health = iter.next();
+			props.setProperty(health.hostKey, health.toProperty());
+		}
+
+		OutputStream output = null;
+		try {
+			output = new FileOutputStream(file);
+			props.store(output, "Common Preferences host health"); //$NON-NLS-1$
+			dirty = false;
+		} catch (IOException e) {
+			// Not fatal, the state will be learned again
+		} finally {
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check if a request may be made to the host. False if the circuit is
+	 * open, else true. When the open period has passed, a trial request is
+	 * allowed. Requests made meanwhile wait for the outcome of the trial, and
+	 * are let through if it succeeds. The caller of a request allowed must
+	 * record its outcome, see {@link #recordSuccess(long)} and
+	 * {@link #recordFailure(boolean)}.
+	 *
+	 * @return boolean
+	 */
+	public synchronized boolean allowRequest() {
+		// Wait no longer than the trial may take to connect and read
+		long deadline = System.currentTimeMillis() + 2L * timeout;
+		while (trialInProgress) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		if (consecutiveFailures < FAILURE_THRESHOLD)
+			return true;
+		if (System.currentTimeMillis() < openUntil)
+			return false;
+		
+		// Let this trial request through, others wait until it's done
+		trialInProgress = true;
+		return true;
+	}
+
+	/**
+	 * Check if the circuit is open, i.e. if the host has failed repeatedly and
+	 * the open period hasn't passed yet.
+	 *
+	 * @return boolean
+	 */
+	public synchronized boolean isOpen() {
+		return consecutiveFailures >= FAILURE_THRESHOLD && System.currentTimeMillis() < openUntil;
+	}
+
+	/**
+	 * Return the timeout to use for connecting to and reading from the host
+	 *
+	 * @return int - milliseconds
+	 */
+	public synchronized int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Record a request where the host responded with a status other than a
+	 * server error, see {@link CommonPrefHttpClient.Response#isServerError()}
+	 *
+	 * @param latency - milliseconds for the full request
+	 */
+	public synchronized void recordSuccess(long latency) {
+		samples[nextSample] = latency;
+		nextSample = (nextSample + 1) % MAX_SAMPLES;
+		if (sampleCount < MAX_SAMPLES)
+			sampleCount++;
+
+		long learned = TIMEOUT_FACTOR * getPercentile(TIMEOUT_PERCENTILE);
+		timeout = (int) Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, learned));
+		consecutiveFailures = 0;
+		openUntil = 0;
+		openPeriod = MIN_OPEN_PERIOD;
+		endTrial();
+		setDirty();
+	}
+
+	/**
+	 * Record a request where the host didn't respond, or responded with a
+	 * server error
+	 *
+	 * @param timedOut - if the failure was a connect or read timeout
+	 */
+	public synchronized void recordFailure(boolean timedOut) {
+		if (timedOut)
+			timeout = Math.min(MAX_TIMEOUT, timeout * 2);
+
+		consecutiveFailures++;
+		if (consecutiveFailures == FAILURE_THRESHOLD) {
+			openUntil = System.currentTimeMillis() + openPeriod;
+		} else if (consecutiveFailures > FAILURE_THRESHOLD) {
+			// Trial request failed
+			openPeriod = Math.min(MAX_OPEN_PERIOD, openPeriod * 2);
+			openUntil = System.currentTimeMillis() + openPeriod;
+		}
+		endTrial();
+		setDirty();
+	}
+
+	// Wake up the requests waiting for the outcome of a trial request
+	private void endTrial() {
+		if (trialInProgress) {
+			trialInProgress = false;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Return the latency at the percentile of the recorded samples
+	 *
+	 * @param percentile - 0.0 to 1.0
+	 * @return long - milliseconds, 0 if no samples
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (sampleCount == 0)
+			return 0;
+		long[] sorted = new long[sampleCount];
+		System.arraycopy(samples, 0, sorted, 0, sampleCount);
+		Arrays.sort(sorted);
+		int inx = (int) Math.ceil(percentile * sampleCount) - 1;
+		return sorted[Math.max(0, Math.min(sampleCount - 1, inx))];
+	}
+
+	private static void setDirty() {
+		dirty = true;
+	}
+
+	// Format: timeout;consecutiveFailures;openUntil;openPeriod;sample,sample,...
+	private String toProperty() {
+		StringBuilder buffer = new StringBuilder();
+		synchronized (this) {
+			buffer.append(timeout).append(';');
+			buffer.append(consecutiveFailures).append(';');
+			buffer.append(openUntil).append(';');
+			buffer.append(openPeriod).append(';');
+			// Oldest first
+			int first = (sampleCount < MAX_SAMPLES) ? 0 : nextSample;
+			for (int i = 0; i < sampleCount; i++) {
+				if (i > 0)
+					buffer.append(',');
+				buffer.append(samples[(first + i) % MAX_SAMPLES]);
+			}
+		}
+		return buffer.toString();
+	}
+
+	private static CommonPrefHostHealth fromProperty(String hostKey, String value) {
+		CommonPrefHostHealth health = new CommonPrefHostHealth(hostKey);
+		String[] fields = value.split(";", -1); //$NON-NLS-1$
+		if (fields.length != 5)
+			return health;
+		try {
+			health.timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, Integer.parseInt(fields[0])));
+			health.consecutiveFailures = Integer.parseInt(fields[1]);
+			health.openUntil = Long.parseLong(fields[2]);
+			health.openPeriod = Long.parseLong(fields[3]);
+			if (fields[4].length() > 0) {
+				String[] sampleStrs = fields[4].split(","); //$NON-NLS-1$
+				for (int i = 0; i < sampleStrs.length && i < MAX_SAMPLES; i++)
+					health.samples[i] = Long.parseLong(sampleStrs[i]);
+				health.sampleCount = Math.min(sampleStrs.length, MAX_SAMPLES);
+				health.nextSample = health.sampleCount % MAX_SAMPLES;
+			}
+		} catch (NumberFormatException e) {
+			return new CommonPrefHostHealth(hostKey);
+		}
+		return health;
+	}
+
+	private static Map<String, CommonPrefHostHealth> load() {
+		Map<String, CommonPrefHostHealth> result = new HashMap<String, CommonPrefHostHealth>();
+		File file = getHealthFile();
+		if (file == null || !file.exists())
+			return result;
+
+		Properties props = new Properties();
+		InputStream input = null;
+		try {
+			input = new FileInputStream(file);
+			props.load(input);
+		} catch (IOException e) {
+			return result;
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		for (Iterator<Object> iter = props.keySet().iterator(); iter.hasNext();) {
+			String hostKey = (String) iter.next();
+			result.put(hostKey, fromProperty(hostKey, props.getProperty(hostKey)));
+		}
+		return result;
+	}
+
+	private static File getHealthFile() {
+		StartupPlugin plugin = StartupPlugin.getDefault();
+		if (plugin == null)
+			return null;
+		IPath path = plugin.getStateLocation();
+		if (path == null)
+			return null;
+		return path.append(HEALTH_FILE).toFile();
+	}
+
+	// E.g. https://raw.github.com:443
+	private static String getHostKey(URL url) {
+		int port = url.getPort();
+		if (port == -1)
+			port = url.getDefaultPort();
+		return url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,322 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * The HTTP client shared by all access to remote preference resources, i.e. the
+ * startup load, the Compare page, the Add/Edit dialog and the Export wizard.
+ * <p>
+ * Connections are kept alive and reused between requests to the same host,
+ * which HttpURLConnection does by default; the Connection header is restricted
+ * and can't be set. The JDK keeps an idle connection in its keep-alive cache
+ * only if the response is read to the end and the stream closed, without
+ * calling disconnect(). Hence all responses, including error and 304
+ * responses, are fully consumed here.
+ * For https the TLS sessions are cached by the shared default SSL context, so
+ * a reconnect to the same host resumes the session instead of doing a full
+ * handshake. Bodies are requested gzip compressed, which typically reduces
+ * the size of an .epf file about ten times, and decoded transparently.
+ *
+ * @see CommonPrefResource
+ */
+public class CommonPrefHttpClient {
+
+	private static final String HEADER_ETAG = "ETag"; //$NON-NLS-1$
+	private static final String HEADER_IF_NONE_MATCH = "If-None-Match"; //$NON-NLS-1$
+	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding"; //$NON-NLS-1$
+	private static final String GZIP = "gzip"; //$NON-NLS-1$
+
+	private static CommonPrefHttpClient instance;
+	
+	// Cost of all requests made, see getStatistics()
+	private long requestCount;
+	private long notModifiedCount;
+	private long failedCount;
+	private long receivedBytes;
+	private long requestTime;
+
+	/**
+	 * The result of a request. The body is only set for a 200 response, and
+	 * is decoded if sent with gzip content encoding.
+	 */
+	public static class Response {
+		private int responseCode;
+		private String etag;
+		private long lastModified;
+		private byte[] body;
+		private long transferSize;
+		private long bodyTime;
+
+		public int getResponseCode() {
+			return responseCode;
+		}
+
+		public boolean isNotModified() {
+			return responseCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+		}
+
+		public boolean isOK() {
+			return responseCode == HttpURLConnection.HTTP_OK;
+		}
+
+		/**
+		 * Check if the host failed to serve the request, i.e. responded with a
+		 * 5xx status
+		 *
+		 * @return boolean
+		 */
+		public boolean isServerError() {
+			return responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		/**
+		 * @return long - body bytes as transferred, i.e. before decoding
+		 */
+		public long getTransferSize() {
+			return transferSize;
+		}
+
+		/**
+		 * @return long - nanoseconds spent reading the body
+		 */
+		public long getBodyTime() {
+			return bodyTime;
+		}
+	}
+
+	/**
+	 * Snapshot of the accumulated cost of the requests made by the client
+	 */
+	public static class Statistics {
+		private long requestCount;
+		private long notModifiedCount;
+		private long failedCount;
+		private long receivedBytes;
+		private long requestTime;
+
+		public long getRequestCount() {
+			return requestCount;
+		}
+
+		public long getNotModifiedCount() {
+			return notModifiedCount;
+		}
+
+		public long getFailedCount() {
+			return failedCount;
+		}
+
+		public long getReceivedBytes() {
+			return receivedBytes;
+		}
+
+		/**
+		 * @return long - milliseconds spent in requests
+		 */
+		public long getRequestTime() {
+			return requestTime;
+		}
+
+		/**
+		 * Return the cost of the requests made since the earlier snapshot
+		 *
+		 * @param earlier
+		 * @return Statistics
+		 */
+		public Statistics since(Statistics earlier) {
+			Statistics diff = new Statistics();
+			diff.requestCount = requestCount - earlier.requestCount;
+			diff.notModifiedCount = notModifiedCount - earlier.notModifiedCount;
+			diff.failedCount = failedCount - earlier.failedCount;
+			diff.receivedBytes = receivedBytes - earlier.receivedBytes;
+			diff.requestTime = requestTime - earlier.requestTime;
+			return diff;
+		}
+
+		/**
+		 * Return the sum of this and the other cost
+		 *
+		 * @param other
+		 * @return Statistics
+		 */
+		public Statistics plus(Statistics other) {
+			Statistics sum = new Statistics();
+			sum.requestCount = requestCount + other.requestCount;
+			sum.notModifiedCount = notModifiedCount + other.notModifiedCount;
+			sum.failedCount = failedCount + other.failedCount;
+			sum.receivedBytes = receivedBytes + other.receivedBytes;
+			sum.requestTime = requestTime + other.requestTime;
+			return sum;
+		}
+	}
+
+	private CommonPrefHttpClient() {
+		// Use getDefault()
+	}
+
+	/**
+	 * Return the shared instance
+	 *
+	 * @return CommonPrefHttpClient
+	 */
+	public static synchronized CommonPrefHttpClient getDefault() {
+		if (instance == null)
+			instance = new CommonPrefHttpClient();
+		return instance;
+	}
+
+	/**
+	 * Get the URL in a single request. If a cached copy is passed, the request
+	 * is made conditional on its validators. The timeouts are set from the
+	 * health of the host, and the request fails fast without connecting if the
+	 * host has failed repeatedly, see {@link CommonPrefHostHealth}.
+	 *
+	 * @param url
+	 * @param cached - OK to pass null
+	 * @return Response
+	 * @throws IOException if failing to connect or read
+	 */
+	public Response get(URL url, CommonPrefResourceCache.Entry cached) throws IOException {
+		CommonPrefHostHealth health = CommonPrefHostHealth.forURL(url);
+		if (!health.allowRequest())
+			throw new IOException("Host of " + url.toExternalForm() + 
+					" has not responded recently, access skipped");
+		
+		long start = System.currentTimeMillis();
+		Response response;
+		try {
+			response = doGet(url, cached, health.getTimeout());
+		} catch (SocketTimeoutException e) {
+			health.recordFailure(true);
+			record(null, System.currentTimeMillis() - start);
+			throw e;
+		} catch (IOException e) {
+			health.recordFailure(false);
+			record(null, System.currentTimeMillis() - start);
+			throw e;
+		} catch (RuntimeException e) {
+			// E.g. an invalid proxy setting. Still ends any trial request.
+			health.recordFailure(false);
+			record(null, System.currentTimeMillis() - start);
+			throw e;
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		if (response.isServerError())
+			health.recordFailure(false);
+		else
+			health.recordSuccess(elapsed);
+		record(response, elapsed);
+		return response;
+	}
+	
+	/**
+	 * Return the accumulated cost of the requests made so far in the session
+	 *
+	 * @return Statistics
+	 */
+	public synchronized Statistics getStatistics() {
+		Statistics stats = new Statistics();
+		stats.requestCount = requestCount;
+		stats.notModifiedCount = notModifiedCount;
+		stats.failedCount = failedCount;
+		stats.receivedBytes = receivedBytes;
+		stats.requestTime = requestTime;
+		return stats;
+	}
+	
+	// Add the request to the statistics. Response is null if failed
+	private synchronized void record(Response response, long elapsed) {
+		requestCount++;
+		requestTime += elapsed;
+		if (response == null)
+			failedCount++;
+		else {
+			if (response.isNotModified())
+				notModifiedCount++;
+			receivedBytes += response.getTransferSize();
+		}
+	}
+	
+	// Make the request, using the timeout learned for the host
+	private Response doGet(URL url, CommonPrefResourceCache.Entry cached, int timeout) throws IOException {
+		HttpURLConnection httpCon = (HttpURLConnection) url.openConnection();
+		httpCon.setConnectTimeout(timeout);
+		httpCon.setReadTimeout(timeout);
+		httpCon.setUseCaches(false);
+		httpCon.setRequestProperty(HEADER_ACCEPT_ENCODING, GZIP);
+		if (cached != null) {
+			if (cached.getETag() != null)
+				httpCon.setRequestProperty(HEADER_IF_NONE_MATCH, cached.getETag());
+			if (cached.getLastModified() > 0)
+				httpCon.setIfModifiedSince(cached.getLastModified());
+		}
+		httpCon.connect();
+
+		Response response = new Response();
+		response.responseCode = httpCon.getResponseCode();
+		response.etag = httpCon.getHeaderField(HEADER_ETAG);
+		response.lastModified = httpCon.getLastModified();
+
+		if (response.isOK()) {
+			// Decode transparently if the server compressed the body
+			long bodyStart = System.nanoTime();
+			InputStream body = httpCon.getInputStream();
+			if (GZIP.equalsIgnoreCase(httpCon.getContentEncoding()))
+				body = new GZIPInputStream(body);
+			response.body = readAll(body);
+			response.bodyTime = System.nanoTime() - bodyStart;
+			response.transferSize = httpCon.getContentLength() >= 0 ? 
+					httpCon.getContentLength() : response.body.length;
+		} else {
+			// Consume any error body, to allow the connection to be reused
+			InputStream error = httpCon.getErrorStream();
+			if (error != null)
+				readAll(error);
+		}
+		return response;
+	}
+
+	// Read the stream to the end and close it
+	private static byte[] readAll(InputStream input) throws IOException {
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int len;
+			while ((len = input.read(buffer)) != -1)
+				output.write(buffer, 0, len);
+			return output.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.eclipse.common_prefs.StartupPlugin;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.Status;
+
+
+/**
+ * Timing of the phases of loading the preference files on startup, and of
+ * each resource in the list. Recording is started when the plug-in is
+ * activated and ended when the preferences have been applied, see
+ * {@link #begin()} and {@link #end()}. Outside of that, e.g. when polling
+ * during the session, nothing is recorded.
+ * <p>
+ * The phases are timed with {@link System#nanoTime()}, so the figures aren't
+ * affected by changes of the system clock. Probe and download are summed over
+ * the resources, which are loaded in parallel, so they may add up to more than
+ * the total.
+ * <p>
+ * The summary of each startup is appended as one line to a metrics file in
+ * the plug-in state location. The file is rolled over when it grows too large,
+ * keeping one older file.
+ */
+public class CommonPrefLoadMetrics {
+
+	/**
+	 * The phases of loading the preference files
+	 */
+	public enum Phase {
+		/** Activating the plug-in, up to scheduling the loading of the resources */
+		ACTIVATE,
+		/** Reading the entries of the list from the config.ini and user ini */
+		ENTRIES,
+		/** Scanning the .ref files in the configuration area */
+		REFS,
+		/** Accessing the resources, up to the start of the content */
+		PROBE,
+		/** Reading the content of URL refs, from the server or the cache */
+		DOWNLOAD,
+		/** Digesting the resources and selecting those due to be applied */
+		SELECT,
+		/** Checking the force resources not due for keys changed since applied */
+		DRIFT,
+		/** Parsing and merging the resources */
+		PARSE,
+		/** Applying the preferences */
+		APPLY,
+		/** Saving the default preferences before the workspace is initialized */
+		SNAPSHOT
+	}
+
+	private static final String METRICS_FILE = "load_metrics.log"; //$NON-NLS-1$
+	private static final String METRICS_FILE_OLD = "load_metrics.old.log"; //$NON-NLS-1$
+	private static final long MAX_METRICS_FILE_SIZE = 256 * 1024; // bytes
+	private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss"; //$NON-NLS-1$
+
+	private static CommonPrefLoadMetrics current;
+
+	private long startTime = System.nanoTime();
+	private Date startDate = new Date();
+	private long totalTime;
+	private long[] phaseTimes = new long[Phase.values().length];
+	private List<ResourceTiming> resources = new ArrayList<ResourceTiming>();
+
+	// Timing of one resource in the list
+	private static class ResourceTiming {
+		private String name;
+		private boolean exists;
+		private long size;
+		private long probeTime;
+		private long downloadTime;
+	}
+
+	private CommonPrefLoadMetrics() {
+		// Use begin()
+	}
+
+	/**
+	 * Start recording, unless already started. Called once, when the plug-in
+	 * is activated, so the activation is included.
+	 */
+	public static synchronized void begin() {
+		if (current == null)
+			current = new CommonPrefLoadMetrics();
+	}
+
+	/**
+	 * End recording and return what was recorded, or null if not recording
+	 *
+	 * @return CommonPrefLoadMetrics
+	 */
+	public static synchronized CommonPrefLoadMetrics end() {
+		CommonPrefLoadMetrics metrics = current;
+		current = null;
+		if (metrics != null)
+			metrics.totalTime = System.nanoTime() - metrics.startTime;
+		return metrics;
+	}
+
+	/**
+	 * Add the time since startTime to the phase, if recording
+	 *
+	 * @param phase
+	 * @param startTime - as returned by {@link System#nanoTime()} when the phase started
+	 */
+	public static synchronized void record(Phase phase, long startTime) {
+		if (current != null)
+			current.phaseTimes[phase.ordinal()] += System.nanoTime() - startTime;
+	}
+
+	/**
+	 * Record the loading of a resource in the list, if recording. The time
+	 * since startTime not spent downloading is counted as probing.
+	 *
+	 * @param resource
+	 * @param startTime - as returned by {@link System#nanoTime()} when the
+	 *        creation of the resource started
+	 */
+	public static synchronized void recordResource(CommonPrefResource resource, long startTime) {
+		if (current == null)
+			return;
+
+		ResourceTiming timing = new ResourceTiming();
+		timing.name = resource.getResourceName();
+		timing.exists = resource.exists();
+		timing.size = resource.getSize();
+		timing.downloadTime = resource.getDownloadTime();
+		timing.probeTime = Math.max(0, System.nanoTime() - startTime - timing.downloadTime);
+		current.resources.add(timing);
+		current.phaseTimes[Phase.PROBE.ordinal()] += timing.probeTime;
+		current.phaseTimes[Phase.DOWNLOAD.ordinal()] += timing.downloadTime;
+	}
+
+	/**
+	 * Return the time of the phase in milliseconds
+	 *
+	 * @param phase
+	 * @return long
+	 */
+	public long getTime(Phase phase) {
+		return toMillis(phaseTimes[phase.ordinal()]);
+	}
+
+	/**
+	 * Return the time from start to end of recording in milliseconds
+	 *
+	 * @return long
+	 */
+	public long getTotalTime() {
+		return toMillis(totalTime);
+	}
+
+	/**
+	 * Return the summary as a status, with one child per resource
+	 *
+	 * @return MultiStatus
+	 */
+	public MultiStatus toStatus() {
+		StringBuilder message = new StringBuilder("Loading preference files took ");
+		message.append(getTotalTime()).append(" ms (");
+		Phase[] phases = Phase.values();
+		for (int i = 0; i < phases.length; i++) {
+			if (i > 0)
+				message.append(", ");
+			message.append(getPhaseName(phases[i])).append(' ').append(getTime(phases[i]));
+		}
+		message.append(" ms)");
+
+		MultiStatus status = new MultiStatus(StartupPlugin.PLUGIN_ID, 0, message.toString(), null);
+		for (ResourceTiming timing : resources) {
+			status.add(new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID,
+					"Resource " + timing.name + ": " +
+					(timing.exists ? timing.size + " bytes, " : "not accessible, ") +
+					"probe " + toMillis(timing.probeTime) + " ms, " +
+					"download " + toMillis(timing.downloadTime) + " ms"));
+		}
+		return status;
+	}
+
+	/**
+	 * Append the summary as one line to the metrics file in the plug-in state
+	 * location. Failing to write is not reported, the metrics are only
+	 * informative.
+	 */
+	public void save() {
+		File file = getMetricsFile(METRICS_FILE);
+		if (file == null)
+			return;
+
+		// Roll over, keeping one older file
+		if (file.length() > MAX_METRICS_FILE_SIZE) {
+			File oldFile = getMetricsFile(METRICS_FILE_OLD);
+			oldFile.delete();
+			file.renameTo(oldFile);
+		}
+
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"); //$NON-NLS-1$
+			writer.write(toLine());
+			writer.write('\n');
+		} catch (IOException e) {
+			// Not fatal, the metrics are only informative
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	// Tab separated key=value fields. The resource name is last in its field,
+	// since it may contain commas.
+	private String toLine() {
+		StringBuilder line = new StringBuilder();
+		line.append(new SimpleDateFormat(DATE_FORMAT).format(startDate));
+		line.append("\ttotal=").append(getTotalTime()); //$NON-NLS-1$
+		for (Phase phase : Phase.values())
+			line.append('\t').append(getPhaseName(phase)).append('=').append(getTime(phase));
+		for (ResourceTiming timing : resources) {
+			line.append("\tresource=") //$NON-NLS-1$
+				.append(timing.exists ? timing.size : -1).append(',')
+				.append(toMillis(timing.probeTime)).append(',')
+				.append(toMillis(timing.downloadTime)).append(',')
+				.append(timing.name);
+		}
+		return line.toString();
+	}
+
+	private static String getPhaseName(Phase phase) {
+		return phase.name().toLowerCase(Locale.ENGLISH);
+	}
+
+	private static long toMillis(long nanos) {
+		return nanos / 1000000;
+	}
+
+	private static File getMetricsFile(String name) {
+		StartupPlugin plugin = StartupPlugin.getDefault();
+		if (plugin == null)
+			return null;
+		IPath path = plugin.getStateLocation();
+		if (path == null)
+			return null;
+		return path.append(name).toFile();
+	}
+}
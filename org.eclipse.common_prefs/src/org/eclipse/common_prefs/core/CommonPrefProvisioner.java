@@ -0,0 +1,380 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.common_prefs.PreferenceInitializer;
+import org.eclipse.common_prefs.StartupPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.preferences.ConfigurationScope;
+import org.eclipse.core.runtime.preferences.InstanceScope;
+import org.osgi.service.prefs.BackingStoreException;
+
+
+/**
+ * Provisioning of workspaces with the common preferences without launching
+ * Eclipse on each of them. The instance scope preferences of the resources
+ * due in a workspace are merged in list order and written directly to the
+ * preference files of the workspace, i.e.
+ * <code>.metadata/.plugins/org.eclipse.core.runtime/.settings/&lt;qualifier&gt;.prefs</code>.
+ * The workspaces are provisioned in parallel, and each resource is read once
+ * for all of them.
+ * <p>
+ * What is due follows the same init/force semantics as on startup, see
+ * {@link CommonPrefsHelper#prepareLoad}, using the state of each workspace.
+ * The state is then updated as the plug-in does: the resources are marked as
+ * applied in the index of the workspace, see {@link CommonPrefStateIndex},
+ * and the workspace is marked as initialized together with the fingerprint
+ * of the list, see {@link CommonPrefFingerprint}. The first launch of a
+ * provisioned workspace then has nothing to apply.
+ * <p>
+ * Configuration scope preferences are shared by all workspaces, so they are
+ * applied once, to the running installation. The fingerprint includes the
+ * configuration area, so a workspace launched with another installation isn't
+ * taken as unchanged. Resources in the legacy (pre 3.0) format, or that can't
+ * be read, aren't provisioned. They are left for the plug-in to apply on the
+ * first launch. Workspaces initialized by a version of the plug-in keeping
+ * its state in the preference store are skipped, since what was applied to
+ * them isn't known here.
+ */
+public class CommonPrefProvisioner {
+
+	// Relative to the workspace directory
+	private static final String SETTINGS_DIR = ".metadata/.plugins/org.eclipse.core.runtime/.settings"; //$NON-NLS-1$
+	private static final String STATE_DIR = ".metadata/.plugins/" + StartupPlugin.PLUGIN_ID; //$NON-NLS-1$
+
+	private static final String PREFS_EXTENSION = ".prefs"; //$NON-NLS-1$
+	private static final String PREFS_VERSION_KEY = "eclipse.preferences.version"; //$NON-NLS-1$
+	private static final String PREFS_VERSION_VALUE = "1"; //$NON-NLS-1$
+	private static final String INSTANCE_PREFIX = "/" + InstanceScope.SCOPE + "/"; //$NON-NLS-1$ //$NON-NLS-2$
+	private static final String CONFIGURATION_PREFIX = "/" + ConfigurationScope.SCOPE + "/"; //$NON-NLS-1$ //$NON-NLS-2$
+	private static final String DOUBLE_SLASH = "//"; //$NON-NLS-1$
+
+	private static final int MAX_THREADS = 8;
+
+	private CommonPrefEPFResources prefFiles;
+	// The content of each resource to provision, in list order
+	private Map<CommonPrefEPFResource, Properties> contents = new LinkedHashMap<CommonPrefEPFResource, Properties>();
+	private String fingerprint;
+	// The resources applied to any of the workspaces
+	private Set<CommonPrefEPFResource> appliedFiles = Collections.synchronizedSet(new HashSet<CommonPrefEPFResource>());
+
+	/**
+	 * @param prefFiles - the list to provision
+	 */
+	public CommonPrefProvisioner(CommonPrefEPFResources prefFiles) {
+		this.prefFiles = prefFiles;
+	}
+
+	/**
+	 * Provision the workspaces. Each workspace is reported as a child of the
+	 * status, with an error if failed. A workspace failing is left as it was,
+	 * except for any preference file already written.
+	 *
+	 * @param workspaces - the workspace directories
+	 * @param status
+	 * @return MultiStatus - the status passed in
+	 */
+	public MultiStatus provision(List<File> workspaces, MultiStatus status) {
+		long start = System.nanoTime();
+		read(status);
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(workspaces.size(), MAX_THREADS)),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Common Preferences workspace provisioner"); //$NON-NLS-1$
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		List<Future<IStatus>> results = new ArrayList<Future<IStatus>>();
+		for (final File workspace : workspaces) {
+			results.add(executor.submit(new Callable<IStatus>() {
+				public IStatus call() throws Exception {
+					return provisionWorkspace(workspace);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				status.add(results.get(i).get());
+			} catch (ExecutionException e) {
+				status.add(new Status(IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+						"Failed provisioning workspace " + workspaces.get(i), e.getCause()));
+			} catch (InterruptedException e) {
+				status.add(new Status(IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+						"Interrupted provisioning workspace " + workspaces.get(i), e));
+			}
+		}
+
+		applyConfiguration(status);
+		status.add(new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID,
+				"Provisioned " + workspaces.size() + " workspaces in " +
+				(System.nanoTime() - start) / 1000000 + " ms"));
+		return status;
+	}
+
+	// Read the content of each resource once, before provisioning in parallel.
+	// The fingerprint is only stored if all resources are provisioned.
+	private void read(MultiStatus status) {
+		boolean complete = true;
+		for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();) {
+			CommonPrefEPFResource prefFile = iter.next();
+			if (!prefFile.exists())
+				continue;
+
+			Properties properties;
+			try {
+				properties = CommonPrefsHelper.readProperties(prefFile);
+			} catch (IOException e) {
+				status.add(new Status(IStatus.WARNING, StartupPlugin.PLUGIN_ID,
+						"Failed loading preference file " + prefFile.getResourceName(), e));
+				complete = false;
+				continue;
+			}
+			if (!properties.containsKey(CommonPrefsHelper.EXPORT_VERSION_KEY)) {
+				status.add(new Status(IStatus.WARNING, StartupPlugin.PLUGIN_ID,
+						"Preference resource " + prefFile.getResourceName() +
+						" is in the legacy format. Will be read on first launch."));
+				complete = false;
+				continue;
+			}
+			// Computed here, since not safe to compute concurrently
+			prefFile.getDigest();
+			contents.put(prefFile, properties);
+		}
+		fingerprint = complete ? CommonPrefFingerprint.compute(prefFiles) : null;
+	}
+
+	private IStatus provisionWorkspace(File workspace) throws IOException {
+		long start = System.nanoTime();
+		if (!workspace.isDirectory())
+			return new Status(IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Workspace directory not found " + workspace);
+
+		File settingsDir = new File(workspace, SETTINGS_DIR);
+		File stateDir = new File(workspace, STATE_DIR);
+		File pluginPrefsFile = new File(settingsDir, StartupPlugin.PLUGIN_ID + PREFS_EXTENSION);
+		Properties pluginPrefs = readPrefs(pluginPrefsFile);
+		boolean wsIsInitialized = Boolean.valueOf(
+				pluginPrefs.getProperty(PreferenceInitializer.PREF_WS_INITIALIZED)).booleanValue();
+		if (wsIsInitialized && !CommonPrefStateIndex.exists(stateDir))
+			return new Status(IStatus.WARNING, StartupPlugin.PLUGIN_ID,
+					"Workspace " + workspace + " was initialized by an earlier version. Skipped.");
+
+		CommonPrefStateIndex index = CommonPrefStateIndex.open(stateDir);
+		index.retain(prefFiles);
+		List<CommonPrefEPFResource> dueFiles = new ArrayList<CommonPrefEPFResource>();
+		for (CommonPrefEPFResource prefFile : contents.keySet()) {
+			if (CommonPrefsHelper.isDue(index, prefFile, wsIsInitialized))
+				dueFiles.add(prefFile);
+		}
+
+		// Merge in list order, grouped per preference file
+		TreeMap<String, Map<String, String>> changes = new TreeMap<String, Map<String, String>>();
+		for (CommonPrefEPFResource prefFile : dueFiles) {
+			for (Map.Entry<Object, Object> entry : contents.get(prefFile).entrySet()) {
+				String fullPath = (String) entry.getKey();
+				if (!fullPath.startsWith(INSTANCE_PREFIX))
+					continue; // E.g. configuration scope, the export version, bundle versions and export roots
+
+				String[] pathAndKey = CommonPrefSnapshot.decodePath(fullPath);
+				String qualifierPath = CommonPrefSnapshot.getQualifierPath(pathAndKey[0]);
+				String qualifier = qualifierPath.substring(INSTANCE_PREFIX.length());
+				String childPath = (pathAndKey[0].length() > qualifierPath.length()) ?
+						pathAndKey[0].substring(qualifierPath.length() + 1) : null;
+				Map<String, String> fileChanges = changes.get(qualifier);
+				if (fileChanges == null) {
+					fileChanges = new LinkedHashMap<String, String>();
+					changes.put(qualifier, fileChanges);
+				}
+				fileChanges.put(encodePath(childPath, pathAndKey[1]), (String) entry.getValue());
+			}
+		}
+
+		// The preferences first and the state last, so a failure leaves the
+		// resources due on the next launch
+		int changedKeys = 0;
+		int changedFiles = 0;
+		for (Map.Entry<String, Map<String, String>> fileChanges : changes.entrySet()) {
+			int changed = updatePrefs(new File(settingsDir, fileChanges.getKey() + PREFS_EXTENSION),
+					fileChanges.getValue());
+			if (changed > 0) {
+				changedKeys += changed;
+				changedFiles++;
+			}
+		}
+
+		long applyTime = (System.nanoTime() - start) / 1000000;
+		for (CommonPrefEPFResource prefFile : dueFiles)
+			index.markApplied(prefFile, applyTime);
+		index.save();
+		appliedFiles.addAll(dueFiles);
+
+		pluginPrefs.setProperty(PreferenceInitializer.PREF_WS_INITIALIZED, Boolean.TRUE.toString());
+		if (fingerprint != null)
+			pluginPrefs.setProperty(CommonPrefFingerprint.FINGERPRINT_KEY, fingerprint);
+		else
+			pluginPrefs.remove(CommonPrefFingerprint.FINGERPRINT_KEY);
+		writePrefs(pluginPrefsFile, pluginPrefs);
+
+		return new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID,
+				"Workspace " + workspace + " provisioned: " + dueFiles.size() + " resources applied, " +
+				changedKeys + " keys changed in " + changedFiles + " files, " +
+				(System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	// Apply the configuration scope preferences of the resources applied to
+	// any workspace, in list order, to the running installation
+	private void applyConfiguration(MultiStatus status) {
+		Properties merged = new Properties();
+		for (Map.Entry<CommonPrefEPFResource, Properties> content : contents.entrySet()) {
+			if (!appliedFiles.contains(content.getKey()))
+				continue;
+			for (Map.Entry<Object, Object> entry : content.getValue().entrySet()) {
+				// Not export roots, which start with "!"
+				if (((String) entry.getKey()).startsWith(CONFIGURATION_PREFIX))
+					merged.put(entry.getKey(), entry.getValue());
+			}
+		}
+		if (merged.isEmpty())
+			return;
+
+		merged.setProperty(CommonPrefsHelper.EXPORT_VERSION_KEY, CommonPrefsHelper.EXPORT_VERSION_VALUE);
+		try {
+			int[] counts = CommonPrefsHelper.applyChangedPreferences(
+					CommonPrefsHelper.toExportedPreferences(merged), CommonPrefsHelper.getPreferenceFilters());
+			Platform.getPreferencesService().getRootNode().node(ConfigurationScope.SCOPE).flush();
+			status.add(new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID,
+					"Configuration preferences applied" + CommonPrefsHelper.getChangeCountText(counts)));
+		} catch (CoreException e) {
+			status.add(new Status(IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Failed applying configuration preferences", e));
+		} catch (BackingStoreException e) {
+			status.add(new Status(IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Failed saving configuration preferences", e));
+		}
+	}
+
+	// Apply the changes to the preference file, writing it only if changed.
+	// Return the number of keys changed.
+	private static int updatePrefs(File file, Map<String, String> changes) throws IOException {
+		Properties prefs = readPrefs(file);
+		int changed = 0;
+		for (Map.Entry<String, String> change : changes.entrySet()) {
+			if (!change.getValue().equals(prefs.setProperty(change.getKey(), change.getValue())))
+				changed++;
+		}
+		if (changed > 0) {
+			prefs.setProperty(PREFS_VERSION_KEY, PREFS_VERSION_VALUE);
+			writePrefs(file, prefs);
+		}
+		return changed;
+	}
+
+	private static Properties readPrefs(File file) throws IOException {
+		Properties prefs = new Properties();
+		if (!file.exists())
+			return prefs;
+		InputStream input = new FileInputStream(file);
+		try {
+			prefs.load(input);
+		} finally {
+			input.close();
+		}
+		return prefs;
+	}
+
+	// Write sorted and without the date comment, as Eclipse does. The file is
+	// first written to a temporary file that then replaces it.
+	private static void writePrefs(File file, Properties prefs) throws IOException {
+		Properties sorted = new Properties() {
+			private static final long serialVersionUID = 1L;
+
+			public synchronized Enumeration<Object> keys() {
+				return Collections.enumeration(new TreeSet<Object>(super.keySet()));
+			}
+
+			// Used by store() on later Java versions
+			public Set<Map.Entry<Object, Object>> entrySet() {
+				TreeMap<Object, Object> entries = new TreeMap<Object, Object>();
+				for (Map.Entry<Object, Object> entry : super.entrySet())
+					entries.put(entry.getKey(), entry.getValue());
+				return entries.entrySet();
+			}
+		};
+		sorted.putAll(prefs);
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		sorted.store(buffer, null);
+		String text = buffer.toString("ISO-8859-1"); //$NON-NLS-1$
+		if (text.startsWith("#")) //$NON-NLS-1$
+			text = text.substring(text.indexOf('\n') + 1);
+
+		file.getParentFile().mkdirs();
+		File tmpFile = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+		OutputStream output = new FileOutputStream(tmpFile);
+		try {
+			output.write(text.getBytes("ISO-8859-1")); //$NON-NLS-1$
+		} finally {
+			output.close();
+		}
+		try {
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			tmpFile.delete();
+			throw e;
+		}
+	}
+
+	// Key in the preference file of the qualifier, the same way as
+	// EclipsePreferences#encodePath
+	private static String encodePath(String path, String key) {
+		if (key.indexOf('/') == -1)
+			return (path == null) ? key : path + '/' + key;
+		return (path == null) ? DOUBLE_SLASH + key : path + DOUBLE_SLASH + key;
+	}
+}
@@ -11,15 +11,21 @@
 
 package org.eclipse.common_prefs.core;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.io.PushbackInputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
 
 import org.eclipse.common_prefs.StartupPlugin;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Platform;
 
 
@@ -33,12 +39,24 @@ import org.eclipse.core.runtime.Platform;
  *
  */
 public class CommonPrefResource {
+	public static final String PREF_FILE_SUFFIX = ".epf"; //$NON-NLS-1$
+	public static final String COMPRESSED_SUFFIX = ".gz"; //$NON-NLS-1$
+	public static final String[] ARCHIVE_SUFFIXES = {".zip", ".jar"}; //$NON-NLS-1$ //$NON-NLS-2$
+	
 	protected String resourceName;
 	protected boolean isFile;
 	protected long lastModified;
 	protected boolean exists;
 	protected File file;
 	protected URL url;
+	protected byte[] content;
+	protected CommonPrefResourceCache.Entry cacheEntry;
+	protected long size;
+	protected int responseCode;
+	protected boolean cachedOnly;
+	protected String digest;
+	protected long downloadTime;
+	protected String etag;
 
 	
 	/**
@@ -54,7 +72,25 @@ public class CommonPrefResource {
 	 */
 	public CommonPrefResource(String resourceName, boolean fileHint, boolean shouldExist)
 		throws Exception {
+		this(resourceName, fileHint, shouldExist, false);
+	}
+	
+	/**
+	 * Create a new CommonPrefResource based on input. If cachedOnly is set, URL
+	 * refs are not accessed. Instead the copy from the last successful fetch is
+	 * used, see {@link CommonPrefResourceCache}, and the resource is regarded as
+	 * not existing if there is no such copy.
+	 * 
+	 * @param resourceName File or URL
+	 * @param fileHint Hint that resource name is a file to avoid expensive URL checking
+	 * @param shouldExist If resource needs to exist
+	 * @param cachedOnly Use only the cached copy of URL refs
+	 * @throws Exception 
+	 */
+	public CommonPrefResource(String resourceName, boolean fileHint, boolean shouldExist, 
+			boolean cachedOnly) throws Exception {
 		this.resourceName = resourceName.trim();
+		this.cachedOnly = cachedOnly;
 		isFile = false;
 		lastModified = -1;
 		
@@ -67,11 +103,26 @@ public class CommonPrefResource {
 			throw new IOException("Failed to access " + this.resourceName);
 	}
 	
+	/**
+	 * Create a CommonPrefResource that is not initialized, i.e. is regarded as
+	 * not existing. Used to keep an entry whose resource couldn't be accessed
+	 * in time.
+	 * 
+	 * @param resourceName File or URL
+	 */
+	protected CommonPrefResource(String resourceName) {
+		this.resourceName = resourceName.trim();
+		isFile = false;
+		lastModified = -1;
+		exists = false;
+	}
+	
 	/**
 	 * Initialize the resource. Depending on type, cache some attributes.
-	 * For performance reasons the lastModification time is cached for URL
-	 * refs, so later - in normal case, i.e. when having an initialized ws
-	 * and not modified URL ref, we will not need to reread the URL.
+	 * For performance reasons URL refs are fetched once here, and the body is
+	 * stored in the cache, so later reads of the resource will not need to
+	 * reconnect to the URL. The body is only kept in memory if it can't be
+	 * cached, or if only the cached copy is to be used, see {@link #readCached()}.
 	 * 
 	 * @param log
 	 * @return
@@ -107,21 +158,17 @@ public class CommonPrefResource {
 					|| url.getProtocol().compareTo("https") == 0) {
 				isFile = false;
 
-				HttpURLConnection httpCon = null;
+				// Probe and download in one request, keeping the body for getInputStream()
 				try {
-					httpCon = (HttpURLConnection) url.openConnection();
-					httpCon.setConnectTimeout(StartupPlugin.URL_CONNECT_TIMEOUT);
-					httpCon.connect();
-
-					
-					// If getting a response to this request we assume this is an existing ref
-					// If not getting a response, we still don't get an exception, but 0 as value
-					lastModified = httpCon.getLastModified();
+					if (cachedOnly)
+						readCached();
+					else
+						fetch();
 					/** 
 					 * FA 2014-02-21: Bug - http pref on github has "lastModified == 0"
 					 * fix by setting exist = true if lastModified >= 0 ...
 					 */
-					exists = (lastModified >= 0);
+					exists = (hasContent() && lastModified >= 0);
 				} catch (Exception e) {
 					lastModified = 0;
 					exists = false;
@@ -188,6 +235,19 @@ public class CommonPrefResource {
 		return exists;
 	}
 	
+	/**
+	 * Re-read the attributes of a file resource, e.g. after it has been changed
+	 * on disk. Nothing is done for URL refs.
+	 */
+	public void refresh() {
+		if (!isFile)
+			return;
+		File file = getFile();
+		exists = file.exists();
+		lastModified = file.lastModified();
+		digest = null;
+	}
+	
 	public String getResourceName() {
 		return resourceName;
 	}
@@ -197,23 +257,351 @@ public class CommonPrefResource {
 	}	
 	
 	/**
-	 * Note that the caller is responsible for proper closing of the stream
+	 * Return the size of the resource in bytes, as stored, i.e. before any
+	 * decoding of compressed resources. 0 if the resource doesn't exist.
+	 * 
+	 * @return long
+	 */
+	public long getSize() {
+		if (!exists)
+			return 0;
+		if (isFile)
+			return getFile().length();
+		return size;
+	}
+	
+	/**
+	 * Return the time spent reading the content of a URL ref when it was
+	 * fetched, from the server or the cache, in nanoseconds. 0 for files, and
+	 * for URL refs not modified since cached, which are read when parsed.
+	 * 
+	 * @return long
+	 */
+	public long getDownloadTime() {
+		return downloadTime;
+	}
+	
+	/**
+	 * Return a validator telling if the resource has changed without reading
+	 * its content: the ETag of a URL ref, or its timestamp if the server sent
+	 * no ETag, and the timestamp and size of a file. Null if the resource
+	 * doesn't exist.
+	 * 
+	 * @return String
+	 */
+	public String getValidator() {
+		if (!exists)
+			return null;
+		if (isFile)
+			return lastModified + ":" + getSize(); //$NON-NLS-1$
+		return (etag != null && etag.length() > 0) ? etag : String.valueOf(lastModified);
+	}
+	
+	/**
+	 * Return the HTTP status of the latest request for this URL ref.
+	 * 
+	 * @return int - 0 if no response was received, e.g. if the host couldn't
+	 *         be reached, and for file resources
+	 */
+	public int getResponseCode() {
+		return responseCode;
+	}
+	
+	/**
+	 * Check if this is a URL ref, i.e. a resource not in the local file system.
+	 * 
+	 * @return boolean
+	 */
+	public boolean isRemote() {
+		return !isFile && url != null;
+	}
+	
+	/**
+	 * Check if the content of this URL ref is the same as for the other, by
+	 * comparing their digests. Always false for file resources, or if any of
+	 * the resources has no content.
+	 * 
+	 * @param other
+	 * @return boolean
+	 */
+	public boolean hasSameContent(CommonPrefResource other) {
+		if (!isRemote() || other == null || !other.isRemote() || !hasContent() || !other.hasContent())
+			return false;
+		String thisDigest = getDigest();
+		return (thisDigest != null && thisDigest.equals(other.getDigest()));
+	}
+	
+	/**
+	 * Drop the body of a URL ref held since it was fetched, e.g. once the
+	 * resource has been applied. The next read fetches the resource again,
+	 * with a conditional request, so it isn't served a stale copy. Nothing is
+	 * done for file resources.
+	 */
+	public void releaseContent() {
+		if (isFile)
+			return;
+		content = null;
+		cacheEntry = null;
+	}
+	
+	/**
+	 * Note that the caller is responsible for proper closing of the stream.
+	 * For URL refs the body fetched when initializing is returned, from the
+	 * cache, so no new connection is made. Only if that fetch failed, or the
+	 * body has been released, see {@link #releaseContent()}, the resource is
+	 * fetched again. Compressed resources and archives are returned decoded,
+	 * i.e. as the content of a preference file.
 	 * 
 	 * @return
 	 * @throws IOException
 	 */
 	public InputStream getInputStream() throws IOException {
+		InputStream input = null;
 		if (isFile) {
 			if (file == null)
 				file = new File(resourceName);
-			return new FileInputStream(file);
+			input = new FileInputStream(file);
 		} else {
-			HttpURLConnection httpCon = (HttpURLConnection) url.openConnection();
-			httpCon.setConnectTimeout(StartupPlugin.URL_CONNECT_TIMEOUT);
-			httpCon.setReadTimeout(StartupPlugin.URL_READ_TIMEOUT);
-			httpCon.connect();
+			if (!hasContent()) {
+				if (cachedOnly)
+					readCached();
+				else
+					fetch();
+			}
+			if (content != null)
+				input = new ByteArrayInputStream(content);
+			else if (cacheEntry != null)
+				input = cacheEntry.getInputStream();
+			else
+				throw new IOException("Failed to access " + resourceName + 
+						" (HTTP response code " + responseCode + ")");
+		}
 		
-			return httpCon.getInputStream();
+		if (isCompressed()) {
+			try {
+				return decompress(input);
+			} catch (IOException e) {
+				input.close();
+				throw e;
+			}
+		}
+		if (isArchive())
+			return new CommonPrefArchiveInputStream(input);
+		return input;
+	}
+	
+	/**
+	 * Decode a compressed resource, if the content starts with the gzip magic
+	 * bytes. A server may send a .gz resource with Content-Encoding gzip, in
+	 * which case it is already decoded by {@link CommonPrefHttpClient}.
+	 * 
+	 * @param input
+	 * @return InputStream
+	 * @throws IOException
+	 */
+	private static InputStream decompress(InputStream input) throws IOException {
+		PushbackInputStream pushback = new PushbackInputStream(input, 2);
+		byte[] magic = new byte[2];
+		int len = 0;
+		int read;
+		while (len < magic.length && (read = pushback.read(magic, len, magic.length - len)) != -1)
+			len += read;
+		if (len > 0)
+			pushback.unread(magic, 0, len);
+		if (len == magic.length && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b)
+			return new GZIPInputStream(pushback);
+		return pushback;
+	}
+	
+	/**
+	 * Check if the resource is a zip or jar archive of preference files, read
+	 * as one preference file, see {@link CommonPrefArchiveInputStream}
+	 * 
+	 * @return boolean
+	 */
+	public boolean isArchive() {
+		return isArchiveName(resourceName);
+	}
+	
+	/**
+	 * Check if the name has a suffix of a supported resource type, i.e. .epf,
+	 * .epf.gz, .zip or .jar
+	 * 
+	 * @param name
+	 * @return boolean
+	 */
+	public static boolean isPreferenceResourceName(String name) {
+		String lowerName = name.trim().toLowerCase();
+		return lowerName.endsWith(PREF_FILE_SUFFIX) || 
+			lowerName.endsWith(PREF_FILE_SUFFIX + COMPRESSED_SUFFIX) ||
+			isArchiveName(lowerName);
+	}
+	
+	private static boolean isArchiveName(String name) {
+		String lowerName = name.toLowerCase();
+		for (String suffix : ARCHIVE_SUFFIXES) {
+			if (lowerName.endsWith(suffix))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Return the SHA-256 digest of the (uncompressed) content as a hex string.
+	 * Used to detect if the resource has really changed since last applied,
+	 * which lastModified doesn't tell reliably; some http servers report 0,
+	 * and clocks on file shares may be skewed.
+	 * 
+	 * @return String or null if the resource doesn't exist or can't be read
+	 */
+	public String getDigest() {
+		if (digest != null || !exists)
+			return digest;
+		
+		InputStream input = null;
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+			input = getInputStream();
+			byte[] buffer = new byte[8192];
+			int len;
+			while ((len = input.read(buffer)) != -1)
+				md.update(buffer, 0, len);
+			digest = toHexString(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			StartupPlugin.log(IStatus.WARNING, "Failed to compute digest of " + resourceName, e);
+		} catch (IOException e) {
+			// Treated as unknown content
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return digest;
+	}
+	
+	/**
+	 * Convert the bytes to a lower case hex string
+	 * 
+	 * @param bytes
+	 * @return String
+	 */
+	static String toHexString(byte[] bytes) {
+		StringBuilder buffer = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			buffer.append(Character.forDigit((b >> 4) & 0xf, 16));
+			buffer.append(Character.forDigit(b & 0xf, 16));
+		}
+		return buffer.toString();
+	}
+	
+	/**
+	 * Check if the resource is a gzip compressed preference file, i.e. has
+	 * a name ending with .gz, e.g. formatter.epf.gz
+	 * 
+	 * @return boolean
+	 */
+	public boolean isCompressed() {
+		return resourceName.toLowerCase().endsWith(COMPRESSED_SUFFIX);
+	}
+	
+	/**
+	 * Check if the body of a URL ref is at hand, in memory or in the cache,
+	 * i.e. has been fetched and not released since. Always false for file
+	 * resources, which are read when needed.
+	 * 
+	 * @return boolean
+	 */
+	public boolean hasContent() {
+		return (content != null || cacheEntry != null);
+	}
+	
+	/**
+	 * Fetch the URL ref in a single request, capturing status, validators and
+	 * body. The request is made through the shared {@link CommonPrefHttpClient}
+	 * and is conditional on the cached copy, see {@link CommonPrefResourceCache}.
+	 * If the resource isn't modified the cached body is used, else the new body
+	 * is cached. The body is read from the cache when needed, and only kept in
+	 * memory if it couldn't be cached.
+	 * 
+	 * @throws IOException
+	 */
+	private void fetch() throws IOException {
+		if (url == null)
+			throw new IOException("Failed to access " + resourceName);
+		
+		CommonPrefResourceCache.Entry cached = CommonPrefResourceCache.lookup(url);
+		CommonPrefHttpClient.Response response = CommonPrefHttpClient.getDefault().get(url, cached);
+		
+		responseCode = response.getResponseCode();
+		content = null;
+		cacheEntry = null;
+		digest = null;
+		if (cached != null && response.isNotModified()) {
+			lastModified = cached.getLastModified();
+			etag = cached.getETag();
+			cacheEntry = cached;
+			size = cached.getSize();
+			downloadTime = 0;
+			return;
+		}
+		
+		// If getting a response to this request we assume this is an existing ref
+		// If not getting a response, we still don't get an exception, but 0 as value
+		lastModified = response.getLastModified();
+		etag = response.getETag();
+		byte[] body = response.getBody();
+		downloadTime = response.getBodyTime();
+		size = (body != null) ? body.length : 0;
+		if (body != null && CommonPrefResourceCache.isAvailable()) {
+			try {
+				cacheEntry = CommonPrefResourceCache.store(url, response.getETag(), lastModified,
+						new ByteArrayInputStream(body));
+			} catch (IOException e) {
+				// Failing to cache is not fatal, the body is kept in memory instead
+			}
+		}
+		if (cacheEntry == null)
+			content = body;
+	}
+	
+	/**
+	 * Use the cached copy of the URL ref, without accessing the network. If
+	 * no copy is found, the content is left unset. The copy is read into
+	 * memory, since it is kept for comparing with the version fetched later,
+	 * which replaces it in the cache, see
+	 * {@link CommonPrefsHelper#revalidatePreferences}.
+	 * 
+	 * @throws IOException
+	 */
+	private void readCached() throws IOException {
+		content = null;
+		cacheEntry = null;
+		digest = null;
+		CommonPrefResourceCache.Entry cached = CommonPrefResourceCache.lookup(url);
+		if (cached == null)
+			return;
+		long start = System.nanoTime();
+		lastModified = cached.getLastModified();
+		etag = cached.getETag();
+		content = readAll(cached.getInputStream());
+		size = content.length;
+		downloadTime = System.nanoTime() - start;
+	}
+	
+	// Read the stream to the end and close it
+	private static byte[] readAll(InputStream input) throws IOException {
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int len;
+			while ((len = input.read(buffer)) != -1)
+				output.write(buffer, 0, len);
+			return output.toByteArray();
+		} finally {
+			input.close();
 		}
 	}
 	
@@ -0,0 +1,324 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.common_prefs.StartupPlugin;
+
+
+/**
+ * On-disk cache for remote (http/https) preference resources. For each URL the
+ * body is stored together with the ETag and Last-Modified validators returned by
+ * the server, so later requests can be made conditional. When the server answers
+ * 304 Not Modified the cached body is used and no body bytes are transferred.
+ * <p>
+ * The cache is located in the configuration area, see
+ * {@link StartupPlugin#getCacheLocation()}, and is thus shared by all workspaces
+ * using the same Eclipse installation. Each entry consists of two files named
+ * after a digest of the URL:
+ * <p>
+ * <code>
+ * 		&lt;digest&gt;.epf.gz - the body as last received, gzip compressed <br>
+ * 		&lt;digest&gt;.properties - url, etag, lastModified and size <br>
+ * </code>
+ *
+ * @see CommonPrefResource
+ */
+public class CommonPrefResourceCache {
+
+	private static final String BODY_SUFFIX = ".epf.gz"; //$NON-NLS-1$
+	private static final String META_SUFFIX = ".properties"; //$NON-NLS-1$
+	private static final String TEMP_SUFFIX = ".tmp"; //$NON-NLS-1$
+
+	private static final String KEY_URL = "url"; //$NON-NLS-1$
+	private static final String KEY_ETAG = "etag"; //$NON-NLS-1$
+	private static final String KEY_LAST_MODIFIED = "lastModified"; //$NON-NLS-1$
+	private static final String KEY_SIZE = "size"; //$NON-NLS-1$
+
+	/**
+	 * A cached resource. The body file is only valid as long as no newer
+	 * version of the same URL has been stored.
+	 */
+	public static class Entry {
+		private String url;
+		private String etag;
+		private long lastModified;
+		private long size;
+		private File bodyFile;
+
+		public String getURL() {
+			return url;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public File getBodyFile() {
+			return bodyFile;
+		}
+
+		/**
+		 * Return the size of the body as received, i.e. uncompressed
+		 *
+		 * @return long
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Note that the caller is responsible for proper closing of the stream
+		 *
+		 * @return InputStream
+		 * @throws IOException
+		 */
+		public InputStream getInputStream() throws IOException {
+			InputStream input = new FileInputStream(bodyFile);
+			try {
+				return new GZIPInputStream(input);
+			} catch (IOException e) {
+				input.close();
+				throw e;
+			}
+		}
+	}
+
+	private CommonPrefResourceCache() {
+		// All-static
+	}
+
+	/**
+	 * Return the cached entry for the URL, or null if the URL isn't cached or
+	 * the cache entry is incomplete or the body doesn't match its meta data.
+	 *
+	 * @param url
+	 * @return Entry or null
+	 */
+	public static Entry lookup(URL url) {
+		File dir = getCacheDirectory();
+		if (dir == null)
+			return null;
+
+		String name = getEntryName(url);
+		File metaFile = new File(dir, name + META_SUFFIX);
+		File bodyFile = new File(dir, name + BODY_SUFFIX);
+		if (!metaFile.exists() || !bodyFile.exists())
+			return null;
+
+		Properties meta = new Properties();
+		InputStream input = null;
+		try {
+			input = new FileInputStream(metaFile);
+			meta.load(input);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		// Guard against digest collisions
+		if (url.toExternalForm().compareTo(meta.getProperty(KEY_URL, "")) != 0) //$NON-NLS-1$
+			return null;
+
+		Entry entry = new Entry();
+		entry.url = url.toExternalForm();
+		entry.etag = meta.getProperty(KEY_ETAG);
+		entry.bodyFile = bodyFile;
+		try {
+			entry.lastModified = Long.parseLong(meta.getProperty(KEY_LAST_MODIFIED, "0")); //$NON-NLS-1$
+		} catch (NumberFormatException e) {
+			entry.lastModified = 0;
+		}
+		try {
+			entry.size = Long.parseLong(meta.getProperty(KEY_SIZE, "-1")); //$NON-NLS-1$
+		} catch (NumberFormatException e) {
+			entry.size = -1;
+		}
+
+		// The body may be of another version, if the meta data failed to be
+		// stored after it
+		if (entry.size < 0 || (entry.size & 0xffffffffL) != getBodySize(bodyFile))
+			return null;
+		return entry;
+	}
+
+	/**
+	 * Store a new body for the URL along with the validators returned by the
+	 * server. The body and then the meta data are compressed and written to
+	 * temporary files, uniquely named since other jobs or instances may store
+	 * the same URL at the same time, which then replace the entry. A failed
+	 * write thus never replaces a valid cache entry, and a body left with the
+	 * meta data of another version is detected by its size, see
+	 * {@link #lookup(URL)}.
+	 *
+	 * @param url
+	 * @param etag - OK to pass null
+	 * @param lastModified
+	 * @param body - the stream is read to the end, but not closed
+	 * @return Entry
+	 * @throws IOException if the cache isn't available or the write failed
+	 */
+	public static Entry store(URL url, String etag, long lastModified, InputStream body) throws IOException {
+		File dir = getCacheDirectory();
+		if (dir == null)
+			throw new IOException("No cache location available");
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("Failed to create cache location " + dir.getPath());
+
+		String name = getEntryName(url);
+		File bodyFile = new File(dir, name + BODY_SUFFIX);
+		File metaFile = new File(dir, name + META_SUFFIX);
+		File bodyTemp = null;
+		File metaTemp = null;
+		try {
+			bodyTemp = Files.createTempFile(dir.toPath(), name, TEMP_SUFFIX).toFile();
+			long size = 0;
+			OutputStream output = new GZIPOutputStream(new FileOutputStream(bodyTemp));
+			try {
+				byte[] buffer = new byte[8192];
+				int len;
+				while ((len = body.read(buffer)) != -1) {
+					output.write(buffer, 0, len);
+					size += len;
+				}
+			} finally {
+				output.close();
+			}
+
+			Entry entry = new Entry();
+			entry.url = url.toExternalForm();
+			entry.etag = etag;
+			entry.lastModified = lastModified;
+			entry.size = size;
+			entry.bodyFile = bodyFile;
+
+			Properties meta = new Properties();
+			meta.setProperty(KEY_URL, entry.url);
+			if (entry.etag != null)
+				meta.setProperty(KEY_ETAG, entry.etag);
+			meta.setProperty(KEY_LAST_MODIFIED, Long.toString(entry.lastModified));
+			meta.setProperty(KEY_SIZE, Long.toString(entry.size));
+
+			metaTemp = Files.createTempFile(dir.toPath(), name, TEMP_SUFFIX).toFile();
+			output = new FileOutputStream(metaTemp);
+			try {
+				meta.store(output, "Common Preferences cache entry"); //$NON-NLS-1$
+			} finally {
+				output.close();
+			}
+
+			// The meta data last, so it never refers to a body not yet stored
+			replace(bodyTemp, bodyFile);
+			bodyTemp = null;
+			replace(metaTemp, metaFile);
+			metaTemp = null;
+			return entry;
+		} finally {
+			if (bodyTemp != null)
+				bodyTemp.delete();
+			if (metaTemp != null)
+				metaTemp.delete();
+		}
+	}
+
+	/**
+	 * Check if the cache can be used, i.e. if there is a configuration location.
+	 * 
+	 * @return boolean
+	 */
+	public static boolean isAvailable() {
+		return getCacheDirectory() != null;
+	}
+
+	/**
+	 * Return the cache directory, or null if the configuration location isn't
+	 * available.
+	 *
+	 * @return File or null
+	 */
+	private static File getCacheDirectory() {
+		String location = StartupPlugin.getCacheLocation();
+		if (location == null)
+			return null;
+		return new File(location);
+	}
+
+	// Map the URL to a file system safe name
+	private static String getEntryName(URL url) {
+		String urlStr = url.toExternalForm();
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+			byte[] digest = md.digest(urlStr.getBytes("UTF-8")); //$NON-NLS-1$
+			return CommonPrefResource.toHexString(digest);
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(urlStr.hashCode());
+		} catch (IOException e) {
+			return Integer.toHexString(urlStr.hashCode());
+		}
+	}
+
+	// Atomically, so readers see either the old or the new file
+	private static void replace(File from, File to) throws IOException {
+		Files.move(from.toPath(), to.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// The size of the body uncompressed, modulo 2^32, as recorded in the last
+	// four bytes of the gzip format. -1 if it can't be read.
+	private static long getBodySize(File bodyFile) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(bodyFile, "r"); //$NON-NLS-1$
+			if (file.length() < 4)
+				return -1;
+			file.seek(file.length() - 4);
+			byte[] trailer = new byte[4];
+			file.readFully(trailer);
+			return (trailer[0] & 0xffL) | (trailer[1] & 0xffL) << 8 |
+					(trailer[2] & 0xffL) << 16 | (trailer[3] & 0xffL) << 24;
+		} catch (IOException e) {
+			return -1;
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
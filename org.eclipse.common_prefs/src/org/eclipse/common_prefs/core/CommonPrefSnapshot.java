@@ -0,0 +1,405 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.eclipse.common_prefs.StartupPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.preferences.ConfigurationScope;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences;
+import org.eclipse.core.runtime.preferences.InstanceScope;
+import org.osgi.service.prefs.BackingStoreException;
+import org.osgi.service.prefs.Preferences;
+
+
+/**
+ * Compiled snapshot of the preferences of all resources in the list, merged
+ * in list order. When the resources are unchanged since the snapshot was
+ * written, the preferences can be applied straight from the snapshot, without
+ * parsing the text of any resource, see {@link CommonPrefsHelper#applySnapshot}.
+ * <p>
+ * Whether the resources are unchanged is decided by the fingerprint, a digest
+ * over the name, type and content digest of each resource in the list, see
+ * {@link #getFingerprint(CommonPrefEPFResources)}.
+ * <p>
+ * The snapshot is stored in the configuration area, along with the cached
+ * URL refs, see {@link StartupPlugin#getCacheLocation()}. The fingerprint
+ * doesn't depend on the workspace, so the snapshot is shared by all workspaces
+ * using the same Eclipse installation, and a new workspace is initialized from
+ * the snapshot written when another workspace last loaded the same list. The
+ * format is versioned and binary:
+ * <p>
+ * <code>
+ * magic (int), version (int), fingerprint (string), node count (int) <br>
+ * per node, sorted by path: path (string), key count (int) <br>
+ * &nbsp; per key, sorted: key (string), value (string) <br>
+ * </code>
+ * <p>
+ * where a string is its length in bytes (int) followed by the UTF-8 bytes. The
+ * snapshot is read from a read-only memory mapping of the file, except on
+ * win32, and the node paths are interned when read.
+ */
+public class CommonPrefSnapshot {
+
+	private static final String SNAPSHOT_FILE = "preferences.snapshot"; //$NON-NLS-1$
+	private static final int MAGIC = 0x43505331; // "CPS1"
+	private static final int VERSION = 1;
+	private static final String UTF_8 = "UTF-8"; //$NON-NLS-1$
+	private static final String DOUBLE_SLASH = "//"; //$NON-NLS-1$
+
+	private String[] paths;
+	private String[][] keys;
+	private String[][] values;
+
+	private CommonPrefSnapshot() {
+		// Use open()
+	}
+
+	/**
+	 * Return the fingerprint of the list, changing if any resource is added,
+	 * removed, moved, changes type or changes content. Null if the content of
+	 * an existing resource is unknown.
+	 *
+	 * @param prefFiles
+	 * @return String
+	 */
+	public static String getFingerprint(CommonPrefEPFResources prefFiles) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+			for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();) {
+				CommonPrefEPFResource prefFile = iter.next();
+				String digest = null;
+				if (prefFile.exists()) {
+					digest = prefFile.getDigest();
+					if (digest == null)
+						return null;
+				}
+				md.update((prefFile.getResourceName() + '\n' + prefFile.isForce() + '\n' +
+						digest + '\n').getBytes(UTF_8));
+			}
+			return CommonPrefResource.toHexString(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		} catch (IOException e) {
+			// UTF-8 is always supported
+			return null;
+		}
+	}
+
+	/**
+	 * Check if the snapshot stored is for the list as it is now. Only the
+	 * header of the snapshot is read.
+	 *
+	 * @param prefFiles
+	 * @return boolean
+	 */
+	public static boolean matches(CommonPrefEPFResources prefFiles) {
+		String fingerprint = getFingerprint(prefFiles);
+		if (fingerprint == null)
+			return false;
+
+		return openSnapshot(fingerprint) != null;
+	}
+
+	/**
+	 * Read the snapshot stored, if it's for the list as it is now
+	 *
+	 * @param prefFiles
+	 * @return CommonPrefSnapshot - null if missing, outdated or corrupt
+	 */
+	public static CommonPrefSnapshot open(CommonPrefEPFResources prefFiles) {
+		String fingerprint = getFingerprint(prefFiles);
+		if (fingerprint == null)
+			return null;
+
+		ByteBuffer input = openSnapshot(fingerprint);
+		if (input == null)
+			return null;
+		try {
+			CommonPrefSnapshot snapshot = new CommonPrefSnapshot();
+			int nodeCount = input.getInt();
+			snapshot.paths = new String[nodeCount];
+			snapshot.keys = new String[nodeCount][];
+			snapshot.values = new String[nodeCount][];
+			for (int i = 0; i < nodeCount; i++) {
+				snapshot.paths[i] = readString(input).intern();
+				int keyCount = input.getInt();
+				snapshot.keys[i] = new String[keyCount];
+				snapshot.values[i] = new String[keyCount];
+				for (int j = 0; j < keyCount; j++) {
+					snapshot.keys[i][j] = readString(input);
+					snapshot.values[i][j] = readString(input);
+				}
+			}
+			return snapshot;
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// E.g. negative sizes in a corrupt file
+			return null;
+		}
+	}
+
+	/**
+	 * Compile the existing resources in the list into a snapshot and store it,
+	 * replacing any earlier snapshot. Nothing is stored if a resource can't be
+	 * read or is in the legacy (pre 3.0) format, since such a list can't be
+	 * applied from a snapshot. The export root markers ("!" prefixed keys) are
+	 * left out, as they aren't applied either. Intended to be called in the
+	 * background.
+	 *
+	 * @param prefFiles
+	 */
+	public static void save(CommonPrefEPFResources prefFiles) {
+		File file = getSnapshotFile();
+		if (file == null)
+			return;
+		String fingerprint = getFingerprint(prefFiles);
+		if (fingerprint == null)
+			return;
+
+		// Merge in list order, and group the keys per node
+		Properties merged = new Properties();
+		for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();) {
+			CommonPrefEPFResource prefFile = iter.next();
+			if (!prefFile.exists())
+				continue;
+			Properties properties;
+			try {
+				properties = CommonPrefsHelper.readProperties(prefFile);
+			} catch (IOException e) {
+				return;
+			}
+			if (!properties.containsKey(CommonPrefsHelper.EXPORT_VERSION_KEY))
+				return;
+			merged.putAll(properties);
+		}
+		TreeMap<String, TreeMap<String, String>> nodes = new TreeMap<String, TreeMap<String, String>>();
+		for (Map.Entry<Object, Object> entry : merged.entrySet()) {
+			String fullPath = (String) entry.getKey();
+			if (!isAppliedScope(fullPath))
+				continue; // E.g. the export version, bundle versions and export roots
+			String[] pathAndKey = decodePath(fullPath);
+			TreeMap<String, String> node = nodes.get(pathAndKey[0]);
+			if (node == null) {
+				node = new TreeMap<String, String>();
+				nodes.put(pathAndKey[0], node);
+			}
+			node.put(pathAndKey[1], (String) entry.getValue());
+		}
+
+		// Write to a temporary file first, so a snapshot is never half written.
+		// The name is unique, since other instances may write at the same time.
+		File tmpFile = null;
+		DataOutputStream output = null;
+		try {
+			file.getParentFile().mkdirs();
+			tmpFile = File.createTempFile(SNAPSHOT_FILE, ".tmp", file.getParentFile()); //$NON-NLS-1$
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			writeString(output, fingerprint);
+			output.writeInt(nodes.size());
+			for (Map.Entry<String, TreeMap<String, String>> node : nodes.entrySet()) {
+				writeString(output, node.getKey());
+				output.writeInt(node.getValue().size());
+				for (Map.Entry<String, String> entry : node.getValue().entrySet()) {
+					writeString(output, entry.getKey());
+					writeString(output, entry.getValue());
+				}
+			}
+			output.close();
+			output = null;
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// Not fatal, the resources are parsed until a snapshot is stored
+			if (tmpFile != null)
+				tmpFile.delete();
+		} finally {
+			close(output);
+		}
+	}
+
+	/**
+	 * Remove the snapshot stored, if any
+	 */
+	public static void delete() {
+		File file = getSnapshotFile();
+		if (file != null)
+			file.delete();
+	}
+
+	/**
+	 * Apply the preferences of the snapshot. As for
+	 * {@link CommonPrefsHelper#applyChangedPreferences}, only the keys whose
+	 * value differs from the current value in the workspace are set. The
+	 * changed nodes are flushed once each.
+	 *
+	 * @return int[] - the number of keys changed and skipped
+	 * @throws CoreException
+	 */
+	public int[] apply() throws CoreException {
+		IEclipsePreferences root = Platform.getPreferencesService().getRootNode();
+		int[] counts = new int[2];
+		TreeSet<String> changedNodes = new TreeSet<String>();
+		for (int i = 0; i < paths.length; i++) {
+			Preferences node = root.node(paths[i]);
+			for (int j = 0; j < keys[i].length; j++) {
+				if (values[i][j].equals(node.get(keys[i][j], null))) {
+					counts[1]++;
+				} else {
+					node.put(keys[i][j], values[i][j]);
+					counts[0]++;
+					changedNodes.add(getQualifierPath(paths[i]));
+				}
+			}
+		}
+
+		try {
+			for (String path : changedNodes)
+				root.node(path).flush();
+		} catch (BackingStoreException e) {
+			throw new CoreException(new Status(IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Failed saving preferences applied from snapshot", e));
+		}
+		return counts;
+	}
+
+	// Map the snapshot read-only and read the header. Return null if missing,
+	// of another version, or for another fingerprint. On win32 it's read into
+	// memory instead, since a mapped file can't be replaced until the mapping
+	// is garbage collected.
+	private static ByteBuffer openSnapshot(String fingerprint) {
+		File file = getSnapshotFile();
+		if (file == null || !file.exists())
+			return null;
+
+		FileInputStream input = null;
+		try {
+			input = new FileInputStream(file);
+			FileChannel channel = input.getChannel();
+			ByteBuffer buffer;
+			if (Platform.OS_WIN32.equals(Platform.getOS())) {
+				buffer = ByteBuffer.allocate((int) channel.size());
+				while (buffer.hasRemaining() && channel.read(buffer) != -1)
+					;
+				buffer.flip();
+			} else
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() == MAGIC && buffer.getInt() == VERSION &&
+					fingerprint.equals(readString(buffer)))
+				return buffer;
+		} catch (IOException e) {
+			// Treated as missing
+		} catch (RuntimeException e) {
+			// Corrupt, treated as missing
+		} finally {
+			// A mapping stays valid when the file is closed
+			close(input);
+		}
+		return null;
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException {
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining())
+			throw new IOException("Corrupt snapshot");
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	// Also used by CommonPrefStateIndex
+	static String readString(DataInputStream input) throws IOException {
+		byte[] bytes = new byte[input.readInt()];
+		input.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	static void writeString(DataOutputStream output, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	// Only the scopes applied when loading, see CommonPrefsHelper#getPreferenceFilters()
+	static boolean isAppliedScope(String path) {
+		return path.startsWith("/" + InstanceScope.SCOPE + "/") || //$NON-NLS-1$ //$NON-NLS-2$
+				path.startsWith("/" + ConfigurationScope.SCOPE + "/"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	// Split a key in an exported preference file into node path and key, the
+	// same way as EclipsePreferences#decodePath. A "//" marks the end of the
+	// path, else the path ends at the last "/".
+	static String[] decodePath(String fullPath) {
+		int index = fullPath.indexOf(DOUBLE_SLASH);
+		if (index != -1)
+			return new String[] {fullPath.substring(0, index), fullPath.substring(index + 2)};
+		index = fullPath.lastIndexOf('/');
+		return new String[] {fullPath.substring(0, index), fullPath.substring(index + 1)};
+	}
+
+	// E.g. /instance/org.eclipse.ui for /instance/org.eclipse.ui/some/node
+	static String getQualifierPath(String path) {
+		int index = path.indexOf('/', 1);
+		index = path.indexOf('/', index + 1);
+		return (index == -1) ? path : path.substring(0, index);
+	}
+
+	private static void close(InputStream input) {
+		if (input != null) {
+			try {
+				input.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static void close(DataOutputStream output) {
+		if (output != null) {
+			try {
+				output.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static File getSnapshotFile() {
+		String location = StartupPlugin.getCacheLocation();
+		if (location == null)
+			return null;
+		return new File(location, SNAPSHOT_FILE);
+	}
+}
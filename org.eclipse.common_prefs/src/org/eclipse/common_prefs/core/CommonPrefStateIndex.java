@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Ericsson and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Ericsson - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.common_prefs.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.eclipse.common_prefs.StartupPlugin;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.jface.preference.IPreferenceStore;
+
+
+/**
+ * Index of the state of each resource when last applied: the digest of the
+ * content, the validator, the timestamp and how long applying took. Used to
+ * decide if a resource is due to be applied again, see
+ * {@link CommonPrefsHelper#prepareLoad}.
+ * <p>
+ * The index is kept in the plug-in state location, in a versioned binary
+ * format that is read with one I/O when first needed:
+ * <p>
+ * <code>
+ * magic (int), version (int), entry count (int) <br>
+ * per entry: resource name (string), digest (string), validator (string),
+ * timestamp (long), apply time in ms (long) <br>
+ * </code>
+ * <p>
+ * where a string is as in {@link CommonPrefSnapshot}, and an empty string
+ * means unknown. The file is replaced atomically when saved, so a crash can't
+ * leave a half written index.
+ * <p>
+ * Earlier versions kept the timestamp as a key named by the resource in the
+ * plug-in preference store. Such keys are moved to the index of the running
+ * workspace when the resource is first looked up.
+ * <p>
+ * The index of another workspace can be opened as well, see
+ * {@link #open(File)}, e.g. when provisioning workspaces.
+ */
+public class CommonPrefStateIndex {
+
+	private static final String INDEX_FILE = "resource_state.index"; //$NON-NLS-1$
+	private static final int MAGIC = 0x43505349; // "CPSI"
+	private static final int VERSION = 1;
+
+	private static CommonPrefStateIndex instance;
+
+	private File file;
+	private boolean migrate;
+	private TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+	private boolean dirty;
+
+	/**
+	 * The state of a resource when last applied
+	 */
+	public static class Entry {
+		private String digest;
+		private String validator;
+		private long lastModified;
+		private long applyTime;
+
+		/**
+		 * @return String - null if unknown
+		 */
+		public String getDigest() {
+			return digest;
+		}
+
+		/**
+		 * @return String - null if unknown, see {@link CommonPrefResource#getValidator()}
+		 */
+		public String getValidator() {
+			return validator;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return long - milliseconds spent applying, -1 if unknown
+		 */
+		public long getApplyTime() {
+			return applyTime;
+		}
+	}
+
+	private CommonPrefStateIndex(File file, boolean migrate) {
+		this.file = file;
+		this.migrate = migrate;
+	}
+
+	/**
+	 * Return the shared instance, for the running workspace, reading the
+	 * index if not already read
+	 *
+	 * @return CommonPrefStateIndex
+	 */
+	public static synchronized CommonPrefStateIndex getDefault() {
+		if (instance == null) {
+			instance = new CommonPrefStateIndex(getIndexFile(INDEX_FILE), true);
+			instance.read();
+		}
+		return instance;
+	}
+
+	/**
+	 * Read the index in the given state location of the plug-in, i.e.
+	 * &lt;workspace&gt;/.metadata/.plugins/org.eclipse.common_prefs. Empty if
+	 * there is no index. State kept in the preference store by earlier
+	 * versions isn't looked up.
+	 *
+	 * @param stateLocation
+	 * @return CommonPrefStateIndex
+	 */
+	public static CommonPrefStateIndex open(File stateLocation) {
+		CommonPrefStateIndex index = new CommonPrefStateIndex(new File(stateLocation, INDEX_FILE), false);
+		index.read();
+		return index;
+	}
+
+	/**
+	 * Check if the index exists in the given state location of the plug-in
+	 *
+	 * @param stateLocation
+	 * @return boolean
+	 */
+	public static boolean exists(File stateLocation) {
+		return new File(stateLocation, INDEX_FILE).exists();
+	}
+
+	/**
+	 * Return the state of the resource when last applied, or null if not
+	 * applied before
+	 *
+	 * @param prefFile
+	 * @return Entry
+	 */
+	public synchronized Entry get(CommonPrefResource prefFile) {
+		String name = prefFile.getResourceName();
+		Entry entry = entries.get(name);
+		if (entry == null && migrate)
+			entry = migrate(name);
+		return entry;
+	}
+
+	/**
+	 * Record the state of the resource as applied. Nothing is recorded for a
+	 * resource that doesn't exist, so it will be applied as new when it
+	 * appears.
+	 *
+	 * @param prefFile
+	 * @param applyTime - milliseconds spent applying, -1 to keep the time
+	 *        recorded when last applied
+	 */
+	public synchronized void markApplied(CommonPrefResource prefFile, long applyTime) {
+		if (!prefFile.exists())
+			return;
+
+		Entry old = get(prefFile);
+		Entry entry = new Entry();
+		entry.digest = prefFile.getDigest();
+		entry.validator = prefFile.getValidator();
+		entry.lastModified = prefFile.getLastModified();
+		entry.applyTime = (applyTime < 0 && old != null) ? old.applyTime : applyTime;
+		entries.put(prefFile.getResourceName(), entry);
+		dirty = true;
+	}
+
+	/**
+	 * Remove the state of resources no longer in the list, so the index
+	 * doesn't grow with resources removed over time
+	 *
+	 * @param prefFiles
+	 */
+	public synchronized void retain(CommonPrefEPFResources prefFiles) {
+		Set<String> names = new HashSet<String>();
+		for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();)
+			names.add(iter.next().getResourceName());
+		if (entries.keySet().retainAll(names))
+			dirty = true;
+	}
+
+	/**
+	 * Save the index, if changed since read or last saved. The file is first
+	 * written to a temporary file that then atomically replaces the index.
+	 */
+	public synchronized void save() {
+		if (!dirty || file == null)
+			return;
+
+		File tmpFile = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+		DataOutputStream output = null;
+		try {
+			file.getParentFile().mkdirs();
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(entries.size());
+			for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+				Entry entry = mapEntry.getValue();
+				CommonPrefSnapshot.writeString(output, mapEntry.getKey());
+				CommonPrefSnapshot.writeString(output, entry.digest != null ? entry.digest : ""); //$NON-NLS-1$
+				CommonPrefSnapshot.writeString(output, entry.validator != null ? entry.validator : ""); //$NON-NLS-1$
+				output.writeLong(entry.lastModified);
+				output.writeLong(entry.applyTime);
+			}
+			output.close();
+			output = null;
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			dirty = false;
+		} catch (IOException e) {
+			// Not fatal, the resources are applied again on next start
+			tmpFile.delete();
+		} finally {
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	// Read the whole index. A missing or corrupt index is treated as empty.
+	private void read() {
+		if (file == null || !file.exists())
+			return;
+
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (input.readInt() != MAGIC || input.readInt() != VERSION)
+				return;
+			int count = input.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = CommonPrefSnapshot.readString(input);
+				Entry entry = new Entry();
+				entry.digest = emptyToNull(CommonPrefSnapshot.readString(input));
+				entry.validator = emptyToNull(CommonPrefSnapshot.readString(input));
+				entry.lastModified = input.readLong();
+				entry.applyTime = input.readLong();
+				entries.put(name, entry);
+			}
+		} catch (IOException e) {
+			entries.clear();
+		} catch (RuntimeException e) {
+			// E.g. negative sizes in a corrupt file
+			entries.clear();
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	// Move the timestamp kept in the plug-in preference store by earlier
+	// versions to the index. The digest is unknown, so the timestamp decides
+	// if the resource is due until applied again. Return null if there is none.
+	private Entry migrate(String name) {
+		StartupPlugin plugin = StartupPlugin.getDefault();
+		if (plugin == null)
+			return null;
+		IPreferenceStore store = plugin.getPreferenceStore();
+		if (!store.contains(name))
+			return null;
+
+		Entry entry = new Entry();
+		entry.lastModified = store.getLong(name);
+		entry.applyTime = -1;
+		entries.put(name, entry);
+		dirty = true;
+
+		store.setToDefault(name);
+		return entry;
+	}
+
+	private static String emptyToNull(String value) {
+		return (value.length() == 0) ? null : value;
+	}
+
+	private static File getIndexFile(String name) {
+		StartupPlugin plugin = StartupPlugin.getDefault();
+		if (plugin == null)
+			return null;
+		IPath path = plugin.getStateLocation();
+		if (path == null)
+			return null;
+		return path.append(name).toFile();
+	}
+}
@@ -12,8 +12,9 @@
 package org.eclipse.common_prefs.core;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -33,6 +34,7 @@ import org.eclipse.core.net.proxy.IProxyData;
 import org.eclipse.core.net.proxy.IProxyService;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.MultiStatus;
 import org.eclipse.core.runtime.Platform;
@@ -66,6 +68,12 @@ public class CommonPrefsHelper {
 	
 	  protected static final String VERSION_VALUE = "1"; //$NON-NLS-1$
 	  
+	  // Key identifying an exported preference (.epf) file. Without it the file
+	  // is read as a legacy (pre 3.0) export.
+	  protected static final String EXPORT_VERSION_KEY = "file_export_version"; //$NON-NLS-1$
+	  
+	  protected static final String EXPORT_VERSION_VALUE = "3.0"; //$NON-NLS-1$
+	  
 	  
 
 	  	/**
@@ -77,39 +85,286 @@ public class CommonPrefsHelper {
 	 */
 	public static MultiStatus loadPreferences() {
 		
-		// The ErrorLog will show the MultiStatus entry as one top level object
-		// with children for each sub-entry. The top level error state will be 
-		// as the most sever of the child states. 
-		MultiStatus status = new MultiStatus(
-				StartupPlugin.PLUGIN_ID, 0,
-				"Log entries recorded when reading preference files", null);
+		MultiStatus status = createLoadStatus();
+		CommonPrefEPFResources prefFiles = StartupPlugin.getDefault().getCommonPrefFiles(status);
+		return loadPreferences(prefFiles, status);
+	}
+	
+	/**
+	 * Read the preference files in the list into the workspace. Report any
+	 * errors to the status, allowing one file to fail but others to succeed.
+	 * The bodies of the URL refs are dropped once applied.
+	 * 
+	 * @param prefFiles
+	 * @param status
+	 * @return MultiStatus - the status passed in
+	 */
+	public static MultiStatus loadPreferences(CommonPrefEPFResources prefFiles, MultiStatus status) {
+		List<CommonPrefEPFResource> dueFiles = prepareLoad(prefFiles, status, null);
+		Properties drifted = detectDrift(prefFiles, dueFiles, status);
+		IExportedPreferences merged = mergePreparedPreferences(dueFiles, status);
+		applyPreparedPreferences(dueFiles, merged, status);
+		applyDrift(drifted, status);
+		prefFiles.releaseContent();
+		return status;
+	}
+	
+	/**
+	 * Check if the due resources are to be merged and applied in one step, see
+	 * {@link PreferenceInitializer#PREF_MERGED_APPLY}.
+	 * 
+	 * @return boolean
+	 */
+	public static boolean isMergedApply() {
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		return store.getBoolean(PreferenceInitializer.PREF_MERGED_APPLY);
+	}
+	
+	/**
+	 * First phase of loading the preference files in the list. Select the
+	 * resources that are due to be applied. Resources that are not due are
+	 * marked as applied. No preferences are changed, so this can be done in
+	 * the background. The selected resources are then either parsed and merged,
+	 * see {@link #mergePreparedPreferences}, or applied from the snapshot, see
+	 * {@link #openSnapshot}.
+	 * 
+	 * @param prefFiles
+	 * @param status
+	 * @param monitor - OK to pass null
+	 * @return List - the resources to apply, in list order. Empty if canceled.
+	 */
+	public static List<CommonPrefEPFResource> prepareLoad(
+			CommonPrefEPFResources prefFiles, 
+			MultiStatus status,
+			IProgressMonitor monitor) {
 		
 		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
 		boolean wsIsInitialized = false;
 		if (store.contains(PreferenceInitializer.PREF_WS_INITIALIZED))
 			wsIsInitialized = store.getBoolean(PreferenceInitializer.PREF_WS_INITIALIZED);	
 
-		IPreferenceFilter[] transfers = getPreferenceFilters();
-		
-		CommonPrefEPFResources prefFiles = StartupPlugin.getDefault().getCommonPrefFiles(status);
+		long selectStart = System.nanoTime();
+		CommonPrefStateIndex index = CommonPrefStateIndex.getDefault();
+		index.retain(prefFiles);
+		List<CommonPrefEPFResource> dueFiles = new ArrayList<CommonPrefEPFResource>();
 		for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();) {
+			if (monitor != null && monitor.isCanceled()) {
+				dueFiles.clear();
+				break;
+			}
 			CommonPrefEPFResource prefFile = (CommonPrefEPFResource) iter.next();
 			
-			// If ws is initialized, reinit only if pref file is changed
-			long timeStampCurr = prefFile.getLastModified();
-			if (!prefFile.isForce()) {
-				if (wsIsInitialized) {
-					long timeStampOld = store.getLong(prefFile.getResourceName()); // 0 or value
-					if (timeStampCurr <= timeStampOld)
-						continue;
-					else {
-						status.add(new Status(
-								Status.INFO, StartupPlugin.PLUGIN_ID,
-								"Preference resource " + prefFile.getResourceName() + 
-								" is either new or has been updated. Will be read."));								
-					}
-				}
+			// Reinit only if the content has changed since last applied
+			if (!isDue(index, prefFile, wsIsInitialized)) {
+				// Record the digest if only a timestamp was known before
+				index.markApplied(prefFile, -1);
+				prefFile.setParsedPreferences(null);
+				continue;
+			}
+			if (!prefFile.isForce() && wsIsInitialized) {
+				status.add(new Status(
+						Status.INFO, StartupPlugin.PLUGIN_ID,
+						"Preference resource " + prefFile.getResourceName() + 
+						" is either new or has been updated. Will be read."));								
+			}
+			dueFiles.add(prefFile);
+		}
+		index.save();
+		CommonPrefLoadMetrics.record(CommonPrefLoadMetrics.Phase.SELECT, selectStart);
+		return dueFiles;
+	}
+	
+	/**
+	 * Return the snapshot of the list, if all existing resources in the list
+	 * are due to be applied and the snapshot is for the list as it is now, e.g.
+	 * when a new workspace is initialized from unchanged resources. The
+	 * resources then don't need to be parsed, see {@link #applySnapshot}.
+	 * 
+	 * @param prefFiles
+	 * @param dueFiles - as returned by {@link #prepareLoad}
+	 * @return CommonPrefSnapshot - null if to parse the resources
+	 */
+	public static CommonPrefSnapshot openSnapshot(
+			CommonPrefEPFResources prefFiles, 
+			List<CommonPrefEPFResource> dueFiles) {
+		
+		for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();) {
+			CommonPrefEPFResource prefFile = iter.next();
+			if (prefFile.exists() && !dueFiles.contains(prefFile))
+				return null;
+		}
+		return CommonPrefSnapshot.open(prefFiles);
+	}
+	
+	/**
+	 * Second phase of loading the preference files, when applying from the
+	 * snapshot, see {@link #openSnapshot}. Apply the snapshot and mark the
+	 * resources and the workspace as initialized.
+	 * 
+	 * @param dueFiles
+	 * @param snapshot
+	 * @param status
+	 * @return MultiStatus - the status passed in
+	 */
+	public static MultiStatus applySnapshot(
+			List<CommonPrefEPFResource> dueFiles, 
+			CommonPrefSnapshot snapshot,
+			MultiStatus status) {
+		
+		long applyStart = System.nanoTime();
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		CommonPrefStateIndex index = CommonPrefStateIndex.getDefault();
+		int[] counts;
+		try {
+			counts = snapshot.apply();
+		} catch (CoreException e) {
+			status.add(new Status(
+					IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Failed Loading preferences from snapshot", e));
+			return status;
+		}
+		status.add(new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID,
+				"Preferences of " + dueFiles.size() + " unchanged resources applied from snapshot" +
+				getChangeCountText(counts)));
+		
+		// The resources are applied in one step, so share its time
+		long applyTime = toMillis(System.nanoTime() - applyStart);
+		for (CommonPrefEPFResource prefFile : dueFiles) {
+			if (!prefFile.exists()) {
+				status.add(new Status(
+	        			IStatus.WARNING, StartupPlugin.PLUGIN_ID,
+	        			"Resource not found " + prefFile.getResourceName()));
+				continue;
 			}
+			index.markApplied(prefFile, applyTime);
+			prefFile.setParsedPreferences(null);
+		}
+		index.save();
+		store.setValue(PreferenceInitializer.PREF_WS_INITIALIZED, true);
+		CommonPrefLoadMetrics.record(CommonPrefLoadMetrics.Phase.APPLY, applyStart);
+		return status;
+	}
+	
+	/**
+	 * Merge the resources prepared by {@link #prepareLoad} into one tree, so
+	 * that they can be applied in one step. This way preference change
+	 * listeners are notified, and the preferences are flushed, once instead of
+	 * once per resource. The resources are merged in list order, so a key in a
+	 * later resource overrides the same key in an earlier resource, as when
+	 * applied one by one. The export root markers ("!" prefixed keys) are
+	 * dropped, since applying through filters, as done here, doesn't use them.
+	 * <p>
+	 * Resources that can't be read are reported and removed from the list, so
+	 * they aren't marked as applied. Null is returned if merged apply is
+	 * disabled, if there is less than two resources to apply, or if any resource
+	 * is in the legacy (pre 3.0) format. The resources are then parsed to be
+	 * applied one by one.
+	 * 
+	 * @param dueFiles
+	 * @param status
+	 * @return IExportedPreferences - null if to apply one by one
+	 */
+	public static IExportedPreferences mergePreparedPreferences(
+			List<CommonPrefEPFResource> dueFiles, 
+			MultiStatus status) {
+		
+		long parseStart = System.nanoTime();
+		IExportedPreferences merged = null;
+		if (isMergedApply() && dueFiles.size() > 1)
+			merged = mergePreferenceFiles(dueFiles, status);
+		
+		if (merged == null) {
+			for (CommonPrefEPFResource prefFile : dueFiles)
+				parsePreferenceFile(prefFile);
+		}
+		CommonPrefLoadMetrics.record(CommonPrefLoadMetrics.Phase.PARSE, parseStart);
+		return merged;
+	}
+	
+	// Merge the existing resources into one tree, see mergePreparedPreferences.
+	// Return null if any resource is in the legacy format, or if merging fails.
+	private static IExportedPreferences mergePreferenceFiles(
+			List<CommonPrefEPFResource> dueFiles, 
+			MultiStatus status) {
+		
+		List<Properties> fileProperties = new ArrayList<Properties>();
+		List<CommonPrefEPFResource> failedFiles = new ArrayList<CommonPrefEPFResource>();
+		MultiStatus readStatus = createLoadStatus();
+		for (CommonPrefEPFResource prefFile : dueFiles) {
+			if (!prefFile.exists())
+				continue;
+			
+			Properties properties = new Properties();
+			MultiStatus fileStatus = createLoadStatus();
+			mergePreferences(prefFile, properties, fileStatus);
+			if (!fileStatus.isOK()) {
+				readStatus.addAll(fileStatus);
+				failedFiles.add(prefFile);
+				continue;
+			}
+			if (!properties.containsKey(EXPORT_VERSION_KEY))
+				return null;
+			fileProperties.add(properties);
+		}
+		
+		Properties merged = new Properties();
+		for (Properties properties : fileProperties) {
+			for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+				String key = (String) entry.getKey();
+				if (!key.startsWith("!")) //$NON-NLS-1$
+					merged.put(key, entry.getValue());
+			}
+		}
+		merged.setProperty(EXPORT_VERSION_KEY, EXPORT_VERSION_VALUE);
+		
+		IExportedPreferences prefs;
+		try {
+			prefs = toExportedPreferences(merged);
+		} catch (CoreException e) {
+			status.add(new Status(
+					IStatus.WARNING, StartupPlugin.PLUGIN_ID,
+					"Failed merging preference resources. Will be read one by one.", e));
+			return null;
+		}
+		
+		status.addAll(readStatus);
+		dueFiles.removeAll(failedFiles);
+		for (CommonPrefEPFResource prefFile : dueFiles)
+			prefFile.setParsedPreferences(null);
+		return prefs;
+	}
+	
+	/**
+	 * Second phase of loading the preference files, see {@link #prepareLoad}.
+	 * Apply the prepared resources and mark the workspace as initialized. Since
+	 * the resources are already parsed this is a short step, intended to be
+	 * run in the UI thread to have listeners react properly.
+	 * 
+	 * @param dueFiles
+	 * @param merged - the resources merged into one tree, see
+	 *        {@link #mergePreparedPreferences}. If null they are applied one by one.
+	 * @param status
+	 * @return MultiStatus - the status passed in
+	 */
+	public static MultiStatus applyPreparedPreferences(
+			List<CommonPrefEPFResource> dueFiles, 
+			IExportedPreferences merged,
+			MultiStatus status) {
+		
+		long applyStart = System.nanoTime();
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		CommonPrefStateIndex index = CommonPrefStateIndex.getDefault();
+		IPreferenceFilter[] transfers = getPreferenceFilters();
+		
+		if (merged != null) {
+			applyMergedPreferences(index, dueFiles, merged, transfers, status);
+			index.save();
+			store.setValue(PreferenceInitializer.PREF_WS_INITIALIZED, true);
+			CommonPrefLoadMetrics.record(CommonPrefLoadMetrics.Phase.APPLY, applyStart);
+			return status;
+		}
+		
+		for (CommonPrefEPFResource prefFile : dueFiles) {
 			
 			/* NOTE: When using the importPreferences method below, there was an issue when
 			 * loading a preference file; the search window in the preference dialog was gone.
@@ -120,22 +375,512 @@ public class CommonPrefsHelper {
 			// IPath path = new Path(pathStr);
 			// Preferences.importPreferences(path);
 			
-			status.add(loadPreferenceFile(prefFile, transfers));
+			long fileStart = System.nanoTime();
+			IStatus loadStatus = loadPreferenceFile(prefFile, transfers);
+			status.add(loadStatus);
 			
-			// If init file, set timestamp
-			if (!prefFile.isForce())
-				store.setValue(prefFile.getResourceName(), timeStampCurr);
+			// Remember what was applied
+			if (loadStatus.getSeverity() < IStatus.ERROR)
+				index.markApplied(prefFile, toMillis(System.nanoTime() - fileStart));
+			
+			// Any tree parsed in advance is only needed once
+			prefFile.setParsedPreferences(null);
 		}
+		index.save();
 		
 		// Mark workspace as initialized
 		store.setValue(PreferenceInitializer.PREF_WS_INITIALIZED, true);
+		CommonPrefLoadMetrics.record(CommonPrefLoadMetrics.Phase.APPLY, applyStart);
 		
 		return status;
 	}
 	
+	// Apply the merged tree in one step, and report and mark each resource
+	private static void applyMergedPreferences(
+			CommonPrefStateIndex index,
+			List<CommonPrefEPFResource> dueFiles, 
+			IExportedPreferences merged,
+			IPreferenceFilter[] transfers,
+			MultiStatus status) {
+		
+		long applyStart = System.nanoTime();
+		int[] counts;
+		try {
+			counts = applyChangedPreferences(merged, transfers);
+		} catch (CoreException e) {
+			status.add(new Status(
+					IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Failed Loading preferences merged from " + dueFiles.size() + " resources", e));
+			return;
+		}
+		status.add(new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID,
+				"Preferences merged from " + dueFiles.size() + " resources applied in one step" +
+				getChangeCountText(counts)));
+		
+		// The resources are applied in one step, so share its time
+		long applyTime = toMillis(System.nanoTime() - applyStart);
+		for (CommonPrefEPFResource prefFile : dueFiles) {
+			if (!prefFile.exists()) {
+				status.add(new Status(
+	        			IStatus.WARNING, StartupPlugin.PLUGIN_ID,
+	        			"Resource not found " + prefFile.getResourceName()));
+				continue;
+			}
+			status.add(new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID,
+					"Preferences from resource " + prefFile.getResourceName() + " read successfully."));
+			index.markApplied(prefFile, applyTime);
+		}
+	}
+	
+	/**
+	 * Apply a single resource that has changed during the session, if its
+	 * content differs from what was last applied. Used when a local file is
+	 * changed on disk, see CommonPrefFileWatcher.
+	 * 
+	 * @param prefFile
+	 * @param status
+	 * @return MultiStatus - the status passed in
+	 */
+	public static MultiStatus reloadPreferenceFile(CommonPrefEPFResource prefFile, MultiStatus status) {
+		CommonPrefStateIndex index = CommonPrefStateIndex.getDefault();
+		if (!prefFile.exists() || !isDue(index, prefFile, true))
+			return status;
+		
+		status.add(new Status(
+				Status.INFO, StartupPlugin.PLUGIN_ID,
+				"Preference resource " + prefFile.getResourceName() + 
+				" has been changed. Will be read."));
+		long applyStart = System.nanoTime();
+		IStatus loadStatus = loadPreferenceFile(prefFile, null);
+		status.add(loadStatus);
+		if (loadStatus.getSeverity() < IStatus.ERROR) {
+			index.markApplied(prefFile, toMillis(System.nanoTime() - applyStart));
+			index.save();
+		}
+		return status;
+	}
+	
+	/**
+	 * Check if a resource needs to be applied. Force resources are applied
+	 * unless the content is the same as last applied. Init resources are
+	 * applied if the workspace isn't initialized, or if the content has changed
+	 * since last applied. For resources applied before digests were recorded,
+	 * the old lastModified comparison is used.
+	 * 
+	 * @param index
+	 * @param prefFile
+	 * @param wsIsInitialized
+	 * @return boolean
+	 */
+	static boolean isDue(CommonPrefStateIndex index, CommonPrefEPFResource prefFile, 
+			boolean wsIsInitialized) {
+		if (!prefFile.isForce() && !wsIsInitialized)
+			return true;
+		
+		CommonPrefStateIndex.Entry applied = index.get(prefFile);
+		String digestCurr = prefFile.getDigest();
+		if (digestCurr != null && applied != null && applied.getDigest() != null)
+			return digestCurr.compareTo(applied.getDigest()) != 0;
+		
+		if (prefFile.isForce() || applied == null)
+			return true;
+		return prefFile.getLastModified() > applied.getLastModified();
+	}
+	
+	private static long toMillis(long nanos) {
+		return nanos / 1000000;
+	}
+	
+	/**
+	 * Create the status used for reporting when loading preference files. The
+	 * ErrorLog will show the MultiStatus entry as one top level object with
+	 * children for each sub-entry. The top level error state will be as the most
+	 * sever of the child states.
+	 * 
+	 * @return MultiStatus
+	 */
+	public static MultiStatus createLoadStatus() {
+		return new MultiStatus(
+				StartupPlugin.PLUGIN_ID, 0,
+				"Log entries recorded when reading preference files", null);
+	}
+	
+	/**
+	 * Compare the URL refs in the freshly loaded list with the copies that were
+	 * applied from the cache on startup, see {@link CommonPrefEPFResources#load(MultiStatus, boolean)}.
+	 * For each URL ref where a newer version has arrived, only the keys that
+	 * have changed compared to the cached copy are applied. Resources that had
+	 * no cached copy, or whose copy has been released since applied, see
+	 * {@link CommonPrefResource#releaseContent()}, are read as in
+	 * {@link #loadPreferences()}. File resources are skipped since they were
+	 * read directly on startup.
+	 * 
+	 * @param cachedFiles - the list applied on startup
+	 * @param prefFiles - the list loaded with network access
+	 * @param status
+	 * @return MultiStatus - the status passed in
+	 */
+	public static MultiStatus revalidatePreferences(
+			CommonPrefEPFResources cachedFiles,
+			CommonPrefEPFResources prefFiles,
+			MultiStatus status) {
+		
+		CommonPrefStateIndex index = CommonPrefStateIndex.getDefault();
+		IPreferenceFilter[] transfers = getPreferenceFilters();
+		
+		for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();) {
+			CommonPrefEPFResource prefFile = iter.next();
+			if (!prefFile.isRemote() || !prefFile.exists())
+				continue;
+			
+			CommonPrefEPFResource cachedFile = cachedFiles.getPrefFile(prefFile.getResourceName());
+			if (prefFile.hasSameContent(cachedFile))
+				continue;
+			
+			boolean hasCachedCopy = (cachedFile != null && cachedFile.exists() && cachedFile.hasContent());
+			if (!hasCachedCopy && !isDue(index, prefFile, true)) {
+				// Not applied on startup, so use the normal semantics
+				index.markApplied(prefFile, -1);
+				continue;
+			}
+			
+			status.add(new Status(
+					Status.INFO, StartupPlugin.PLUGIN_ID,
+					"Preference resource " + prefFile.getResourceName() + 
+					" has been updated since cached. Will be read."));
+			long applyStart = System.nanoTime();
+			IStatus loadStatus;
+			if (hasCachedCopy)
+				loadStatus = loadChangedPreferences(cachedFile, prefFile, transfers);
+			else
+				loadStatus = loadPreferenceFile(prefFile, transfers);
+			status.add(loadStatus);
+			
+			if (loadStatus.getSeverity() < IStatus.ERROR)
+				index.markApplied(prefFile, toMillis(System.nanoTime() - applyStart));
+		}
+		index.save();
+		
+		return status;
+	}
+	
+	/**
+	 * Apply the keys of the new version of a resource that are added or have
+	 * a changed value compared to the old version.
+	 * 
+	 * @param oldFile
+	 * @param newFile
+	 * @param filters
+	 * @return IStatus
+	 */
+	public static IStatus loadChangedPreferences(
+			CommonPrefResource oldFile,
+			CommonPrefResource newFile,
+			IPreferenceFilter[] filters) {
+		
+		Properties oldProperties = new Properties();
+		Properties newProperties = new Properties();
+		mergePreferences(oldFile, oldProperties, null);
+		MultiStatus readStatus = createLoadStatus();
+		mergePreferences(newFile, newProperties, readStatus);
+		if (!readStatus.isOK())
+			return readStatus;
+		
+		Properties changed = new Properties();
+		for (Map.Entry<Object, Object> entry : newProperties.entrySet()) {
+			if (!entry.getValue().equals(oldProperties.get(entry.getKey())))
+				changed.put(entry.getKey(), entry.getValue());
+		}
+		if (changed.isEmpty() || (changed.size() == 1 && changed.containsKey(EXPORT_VERSION_KEY)))
+			return new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID,
+					"No changed preferences in resource " + newFile.getResourceName() + ".");
+		
+		int[] counts;
+		try {
+			changed.setProperty(EXPORT_VERSION_KEY, 
+					newProperties.getProperty(EXPORT_VERSION_KEY, EXPORT_VERSION_VALUE));
+			counts = applyChangedPreferences(toExportedPreferences(changed), 
+					filters != null? filters : getPreferenceFilters());
+		} catch (CoreException e) {
+			return new Status(
+					IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Failed Loading preferences from resource " + newFile.getResourceName(), e);
+		}
+		
+		return new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID,
+				(changed.size() - 1) + " changed preferences from resource " + 
+				newFile.getResourceName() + " read successfully" + getChangeCountText(counts));
+	}
+	
+	/**
+	 * Apply the preferences, sending only the keys whose value differs from the
+	 * current value in the workspace. Keys in the instance and configuration
+	 * scopes that already hold the same value are removed from the preferences
+	 * passed in, so that listeners aren't notified and the .prefs files aren't
+	 * rewritten for them. If no key is changed nothing is applied.
+	 * 
+	 * @param prefs - the preferences to apply. Unchanged keys are removed.
+	 * @param filters
+	 * @return int[] - the number of keys changed and skipped
+	 * @throws CoreException
+	 */
+	public static int[] applyChangedPreferences(IExportedPreferences prefs, IPreferenceFilter[] filters) 
+			throws CoreException {
+		
+		final IPreferencesService service = Platform.getPreferencesService();
+		final int[] counts = new int[2];
+		try {
+			prefs.accept(new IPreferenceNodeVisitor() {
+				public boolean visit(IEclipsePreferences node) throws BackingStoreException {
+					String path = node.absolutePath();
+					if (!path.startsWith("/" + InstanceScope.SCOPE + "/") && //$NON-NLS-1$ //$NON-NLS-2$
+							!path.startsWith("/" + ConfigurationScope.SCOPE + "/")) //$NON-NLS-1$ //$NON-NLS-2$
+						return true;
+					
+					String[] keys = node.keys();
+					if (keys.length == 0)
+						return true;
+					
+					// NOTE: Check the node exists first, to not create it
+					Preferences current = null;
+					if (service.getRootNode().nodeExists(path))
+						current = service.getRootNode().node(path);
+					for (String key : keys) {
+						String value = node.get(key, null);
+						if (current != null && value != null && value.equals(current.get(key, null))) {
+							node.remove(key);
+							counts[1]++;
+						} else
+							counts[0]++;
+					}
+					return true;
+				}
+			});
+		} catch (BackingStoreException e) {
+			throw new CoreException(new Status(IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Failed comparing preferences with the workspace", e));
+		}
+		
+		if (counts[0] > 0)
+			service.applyPreferences(prefs, filters);
+		return counts;
+	}
+	
+	// Return the text reporting the counts from applyChangedPreferences
+	static String getChangeCountText(int[] counts) {
+		return ": " + counts[0] + " changed, " + counts[1] + " already set and skipped."; 
+	}
+	
+	/**
+	 * Find the keys of force resources that have drifted from the values of
+	 * the resources, e.g. changed by the user since applied. Force resources
+	 * whose content is unchanged aren't due to be applied, see
+	 * {@link #prepareLoad}, so without this any such change would be kept.
+	 * The resources are merged in list order, so a key is only reset if a force
+	 * resource that isn't due is the last one in the list setting it, as when
+	 * applied one by one. It's compared with the value it will have once the
+	 * due resources are applied, i.e. with the merged value of the due
+	 * resources if they set it, else with the current value. Nothing is
+	 * changed, so this can be done in the background. The drift is to be
+	 * applied after the due resources, see {@link #applyDrift}.
+	 * 
+	 * @param prefFiles
+	 * @param dueFiles - as returned by {@link #prepareLoad}, null if none
+	 * @param status
+	 * @return Properties - the drifted keys, in the format of an exported
+	 *         preference file, with the values to reset them to. Empty if none.
+	 */
+	public static Properties detectDrift(
+			CommonPrefEPFResources prefFiles, 
+			List<CommonPrefEPFResource> dueFiles,
+			MultiStatus status) {
+		
+		long driftStart = System.nanoTime();
+		Properties expected = new Properties();
+		Properties merged = new Properties();
+		for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();) {
+			CommonPrefEPFResource prefFile = iter.next();
+			boolean due = dueFiles != null && dueFiles.contains(prefFile);
+			boolean force = prefFile.isForce() && !due;
+			// Resources not due only matter after a force resource not due
+			if (!prefFile.exists() || (!due && !force && expected.isEmpty()))
+				continue;
+			
+			Properties properties;
+			try {
+				properties = readProperties(prefFile);
+			} catch (IOException e) {
+				// Due resources are reported when applied
+				if (force)
+					status.add(new Status(Status.WARNING, StartupPlugin.PLUGIN_ID,
+							"Failed loading preference file " + prefFile.getResourceName(), e));
+				continue;
+			}
+			// Legacy files are only applied when changed
+			if (!properties.containsKey(EXPORT_VERSION_KEY))
+				continue;
+			if (due)
+				merged.putAll(properties);
+			
+			// A later resource setting a key wins over the force resource
+			if (force)
+				expected.putAll(properties);
+			else
+				expected.keySet().removeAll(properties.keySet());
+		}
+		
+		Properties drifted = new Properties();
+		IEclipsePreferences root = Platform.getPreferencesService().getRootNode();
+		for (Map.Entry<Object, Object> entry : expected.entrySet()) {
+			String fullPath = (String) entry.getKey();
+			if (!CommonPrefSnapshot.isAppliedScope(fullPath))
+				continue; // E.g. the export version, bundle versions and export roots
+			
+			// The value once the due resources are applied
+			String current = merged.getProperty(fullPath);
+			if (current == null) {
+				String[] pathAndKey = CommonPrefSnapshot.decodePath(fullPath);
+				try {
+					if (root.nodeExists(pathAndKey[0]))
+						current = root.node(pathAndKey[0]).get(pathAndKey[1], null);
+				} catch (BackingStoreException e) {
+					continue;
+				}
+			}
+			if (!entry.getValue().equals(current))
+				drifted.put(fullPath, entry.getValue());
+		}
+		CommonPrefLoadMetrics.record(CommonPrefLoadMetrics.Phase.DRIFT, driftStart);
+		return drifted;
+	}
+	
+	/**
+	 * Reset the drifted keys of force resources, see {@link #detectDrift}, and
+	 * report each key. Only the drifted keys are written, so listeners are
+	 * only notified for those. To be run in the UI thread, as when applying.
+	 * 
+	 * @param drifted - as returned by {@link #detectDrift}
+	 * @param status
+	 * @return MultiStatus - the status passed in
+	 */
+	public static MultiStatus applyDrift(Properties drifted, MultiStatus status) {
+		if (drifted.isEmpty())
+			return status;
+		
+		long applyStart = System.nanoTime();
+		Properties properties = new Properties();
+		properties.putAll(drifted);
+		properties.setProperty(EXPORT_VERSION_KEY, EXPORT_VERSION_VALUE);
+		int[] counts;
+		try {
+			counts = applyChangedPreferences(toExportedPreferences(properties), getPreferenceFilters());
+		} catch (CoreException e) {
+			status.add(new Status(
+					IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Failed resetting drifted preferences of force resources", e));
+			return status;
+		}
+		
+		MultiStatus driftStatus = new MultiStatus(StartupPlugin.PLUGIN_ID, 0,
+				"Preferences of force resources drifted and were reset" + getChangeCountText(counts), null);
+		for (Object key : new TreeMap<Object, Object>(drifted).keySet())
+			driftStatus.add(new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID, "Reset " + key));
+		status.add(driftStatus);
+		CommonPrefLoadMetrics.record(CommonPrefLoadMetrics.Phase.APPLY, applyStart);
+		return status;
+	}
+	
+	/**
+	 * Convert the keys and values, in the format of an exported preference
+	 * (.epf) file, to preferences that can be applied.
+	 * 
+	 * @param properties
+	 * @return IExportedPreferences
+	 * @throws CoreException
+	 */
+	public static IExportedPreferences toExportedPreferences(Properties properties) throws CoreException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try {
+			properties.store(output, null);
+		} catch (IOException e) {
+			// Not expected for an in memory stream
+			throw new CoreException(new Status(IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Failed converting preferences", e));
+		}
+		IPreferencesService service = Platform.getPreferencesService();
+		return service.readPreferences(new ByteArrayInputStream(output.toByteArray()));
+	}
+	
+	/**
+	 * Return the preferences of the resource as parsed by the preferences
+	 * service. If already parsed in the background, see {@link #parsePreferences},
+	 * the parsed tree is returned without reading the resource again.
+	 * 
+	 * @param prefFile
+	 * @return IExportedPreferences
+	 * @throws IOException if the resource can't be read
+	 * @throws CoreException if the resource can't be parsed
+	 */
+	public static IExportedPreferences readExportedPreferences(CommonPrefEPFResource prefFile) 
+			throws IOException, CoreException {
+		IExportedPreferences prefs = prefFile.getParsedPreferences();
+		if (prefs != null)
+			return prefs;
+		
+		// NOTE: Always read through the resource, since it handles
+		// buffered URL refs, compressed resources and archives
+		InputStream inputStream = prefFile.getInputStream();
+		try {
+			return Platform.getPreferencesService().readPreferences(inputStream);
+		} finally {
+			try {
+				inputStream.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	/**
+	 * Prepare the existing resources in the list for being applied, by
+	 * computing the digest and parsing each resource. Intended to be called in
+	 * the background, so that applying later doesn't access the resources.
+	 * Resources that fail to parse are left unparsed, and the failure is
+	 * reported when applying. Only the digest is computed in merged apply mode,
+	 * since the resources are parsed when merged, or if the snapshot is for the
+	 * list as it is now, see {@link CommonPrefSnapshot}.
+	 * 
+	 * @param prefFiles
+	 */
+	public static void parsePreferences(CommonPrefEPFResources prefFiles) {
+		long parseStart = System.nanoTime();
+		for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();)
+			iter.next().getDigest();
+		
+		if (!isMergedApply() && !CommonPrefSnapshot.matches(prefFiles)) {
+			for (Iterator<CommonPrefEPFResource> iter = prefFiles.iterator(); iter.hasNext();)
+				parsePreferenceFile(iter.next());
+		}
+		CommonPrefLoadMetrics.record(CommonPrefLoadMetrics.Phase.PARSE, parseStart);
+	}
+	
+	// Parse the resource, if existing and not already parsed. Failures are
+	// reported when applying.
+	private static void parsePreferenceFile(CommonPrefEPFResource prefFile) {
+		if (!prefFile.exists() || prefFile.getParsedPreferences() != null)
+			return;
+		try {
+			prefFile.setParsedPreferences(readExportedPreferences(prefFile));
+		} catch (IOException e) {
+			// Reported when applying
+		} catch (CoreException e) {
+			// Reported when applying
+		}
+	}
+	
 	/**
 	 * Read the preferences from selected file and apply. Code inspired by implementation in
 	 * the org.eclipse.ui.internal.wizards.preferences.WizardPreferencesImportPage1#transfer method.
+	 * Only the keys whose value changes are applied, see {@link #applyChangedPreferences}.
 	 * 
 	 * @param importFile
 	 * @param filters
@@ -151,89 +896,31 @@ public class CommonPrefsHelper {
 		if (filtersLoc == null)
 			filtersLoc = getPreferenceFilters();
 			
-		InputStream fis = null;
-		
-		// ADD THIS CODE FOR TESTING WITH ECLIPSE 3.5
-		File file = null;
-		InputStream inputStream = null;
-		OutputStream outputStream = null;
-		// END
+		IExportedPreferences prefs = null;
+		try {
+			prefs = readExportedPreferences(prefFile);
+		} catch (IOException e) {
+			return new Status(
+					IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Resource not found " + prefFile.getResourceName(), e);
+		} catch (CoreException e) {
+			return new Status(
+					IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Failed Loading preferences from resource " + prefFile.getResourceName(), e);
+		}
 		
+		int[] counts;
 		try {
-            try {
-            	// ADD THIS CODE FOR TESTING WITH ECLIPSE 3.5
-            	file = prefFile.getFile();
-            	if (file == null) {
-            		inputStream = prefFile.getInputStream();
-            	}
-            	// END
-            	
-            	// Comment this code for testing with eclipse 3.5
-                //fis = prefFile.getInputStream();
-                // End
-                
-            } catch (IOException e) {
-            	return new Status(
-            			IStatus.ERROR, StartupPlugin.PLUGIN_ID,
-            			"Resource not found " + prefFile.getResourceName(), e);
-            }
-                                                                                                                                                                                  
-            IPreferencesService service = Platform.getPreferencesService();
-            try {
-            	
-            	// ADD THIS CODE FOR TESTING WITH ECLIPSE 3.5
-            	//System.out.println("RESOURCE NAME: " + prefFile.getResourceName() + "\n");
-            	/*IExportedPreferences node = service.readPreferences(fis);
-            	//File file = new File("C:\\Ericsson\\E4E_SVN\\workspace_commonpreftest\\org.eclipse.common_prefs\\test\\common_pref_out.epf");
-            	File file = prefFile.getOutputFile();
-            	if (!file.exists()) {
-            		outputStream = new FileOutputStream(file);
-            		service.exportPreferences(node, filters, outputStream);
-            		if (outputStream != null)
-            			outputStream.close();
-            	}*/
-            	if (file != null)
-            		inputStream = new FileInputStream(file);
-            	
-            	IExportedPreferences prefs = service.readPreferences(inputStream);
-        		if (inputStream != null)
-        			inputStream.close();
-        		service.applyPreferences(prefs, filtersLoc);
-        		// END
-        		
-            	//IExportedPreferences prefs = service.readPreferences(fis);
-        		
-            	// ADD THIS CODE FOR TESTING WITH ECLIPSE 3.5
-            	//IEclipsePreferences[] eclipsePrefs = retrievePreferences(prefs);
-            	// END
-            	
-                //service.applyPreferences(prefs, filtersLoc);
-            	
-                // ADD THIS CODE FOR TESTING WITH ECLIPSE 3.5
-                //retrieveNode(eclipsePrefs);
-            	//updateCompareTree(eclipsePrefs);
-                // END
-                                
-                // persistConfigurationNode();
-            } catch (CoreException e) {
-            	return new Status(
-            			IStatus.ERROR, StartupPlugin.PLUGIN_ID,
-            			"Failed Loading preferences from resource " + prefFile.getResourceName(), e);
-            }  catch (IOException e) {
-            	
-            }
-            
-	    } finally {
-	        if (fis != null) {
-				try {
-	                fis.close();
-	            } catch (IOException e) {
-	            }
-			}
-	    }
+			counts = applyChangedPreferences(prefs, filtersLoc);
+		} catch (CoreException e) {
+			return new Status(
+					IStatus.ERROR, StartupPlugin.PLUGIN_ID,
+					"Failed Loading preferences from resource " + prefFile.getResourceName(), e);
+		}
 	    
 	    return new Status(IStatus.INFO, StartupPlugin.PLUGIN_ID,
-				"Preferences from resource " + prefFile.getResourceName() + " read successfully.");
+				"Preferences from resource " + prefFile.getResourceName() + " read successfully" +
+				getChangeCountText(counts));
 	}
 		
 	
@@ -376,7 +1063,7 @@ public class CommonPrefsHelper {
 	}
 */
 	
-	private static IPreferenceFilter[] getPreferenceFilters() {
+	static IPreferenceFilter[] getPreferenceFilters() {
 		
 		IPreferenceFilter[] transfers = new IPreferenceFilter[1];
 		transfers[0] = new IPreferenceFilter() {
@@ -398,6 +1085,7 @@ public class CommonPrefsHelper {
 	 */
 	public static void saveDefaultPreferences() {
 		
+		long snapshotStart = System.nanoTime();
 		IPath path = StartupPlugin.getDefaultPrefFile();
 				
 		// ADD THIS CODE FOR TESTING
@@ -425,6 +1113,7 @@ public class CommonPrefsHelper {
 		}
 		
 		// END
+		CommonPrefLoadMetrics.record(CommonPrefLoadMetrics.Phase.SNAPSHOT, snapshotStart);
 		
 		/*try {
 			Preferences.exportPreferences(path);
@@ -568,7 +1257,6 @@ public class CommonPrefsHelper {
 		IExportedPreferences prefs = null;
 		
 		// ADD THIS CODE FOR TESTING WITH ECLIPSE 3.5
-		File file = null;
 		InputStream inputStream = null;
 		OutputStream outputStream = null;
 		// END
@@ -583,13 +1271,7 @@ public class CommonPrefsHelper {
 			// ADD IExportedPreferences CODE HERE
 			IPreferencesService myService = Platform.getPreferencesService();
 			//IExportedPreferences node = myService.readPreferences(fis);
-			file = prefFile.getFile();
-			if (file == null) {
-				inputStream = prefFile.getInputStream();
-			}
-			if (file != null) {
-				inputStream = new FileInputStream(file);
-			}
+			inputStream = prefFile.getInputStream();
 			/*File file = new File("C:\\Ericsson\\E4E_SVN\\workspace_commonpreftest\\org.eclipse.common_prefs\\test\\common_pref_out.epf");
 			OutputStream outputStream = new FileOutputStream(file);
     		service.exportPreferences(node, preferenceFilter, outputStream);
@@ -961,6 +1643,25 @@ public class CommonPrefsHelper {
 	}
 	
 	
+	/**
+	 * Read the keys and values of the resource, in the format of an exported
+	 * preference (.epf) file.
+	 * 
+	 * @param prefFile
+	 * @return Properties
+	 * @throws IOException
+	 */
+	static Properties readProperties(CommonPrefResource prefFile) throws IOException {
+		Properties properties = new Properties();
+		InputStream input = prefFile.getInputStream();
+		try {
+			properties.load(input);
+		} finally {
+			input.close();
+		}
+		return properties;
+	}
+	
 	/**
 	 * ADD THIS METHOD FOR TESTING WITH ECLIPSE 3.5
 	 * 
@@ -14,6 +14,10 @@ package org.eclipse.common_prefs.core;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.eclipse.common_prefs.StartupPlugin;
+import org.eclipse.core.net.proxy.IProxyData;
+import org.eclipse.core.net.proxy.IProxyService;
+
 /**
  * @author Domenic Alessi
  *
@@ -94,33 +98,31 @@ public class NetworkPrefResources {
 	}
 	
 	
+	/**
+	 * Capture the current network settings from the proxy service. The proxy
+	 * data is read once. If the proxy service isn't available, nothing is
+	 * captured.
+	 */
 	public void loadNetworkSettings() {
 		
-		CommonPrefsHelper commonPrefsHelper = new CommonPrefsHelper();
-		String[] types = commonPrefsHelper.getProxyType();
-		String[] hosts = commonPrefsHelper.getProxyHost();
-		int[] ports = commonPrefsHelper.getProxyPort();
-		boolean[] authenticate = commonPrefsHelper.getAuthenticate();
-		boolean isProxiesEnable = commonPrefsHelper.getProxiesEnable();
-		String nonProxies = buildNonProxiesHost(commonPrefsHelper);
-		
+		IProxyService proxy = StartupPlugin.getDefault().getProxyService();
+		if (proxy == null)
+			return;
 		
-		for (int i = 0; i < types.length; i++) {
-			NetworkPrefResource networkProxiesSettings = new NetworkPrefResource(hosts[i], ports[i], types[i], authenticate[i]);
+		IProxyData[] proxyData = proxy.getProxyData();
+		for (int i = 0; i < proxyData.length; i++) {
+			NetworkPrefResource networkProxiesSettings = new NetworkPrefResource(
+					proxyData[i].getHost(), proxyData[i].getPort(), proxyData[i].getType(), 
+					proxyData[i].isRequiresAuthentication());
 			addNetworkResource(networkProxiesSettings, null);
 		}
 		
-		NetworkNonProxiesResource nonProxiesResource = new NetworkNonProxiesResource(nonProxies, isProxiesEnable);
+		String nonProxies = new CommonPrefsHelper().getNonProxiesHost();
+		NetworkNonProxiesResource nonProxiesResource = new NetworkNonProxiesResource(nonProxies, proxy.isProxiesEnabled());
 		addNetworkResource(null, nonProxiesResource);
 		
 	}
 	
 	
-	private String buildNonProxiesHost(CommonPrefsHelper commonPrefsHelper) {
-		
-		return commonPrefsHelper.getNonProxiesHost();
-	}
-	
-	
 
 }
@@ -19,6 +19,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
+import org.eclipse.common_prefs.CommonPrefPollJob;
 import org.eclipse.common_prefs.PreferenceInitializer;
 import org.eclipse.common_prefs.StartupPlugin;
 import org.eclipse.common_prefs.core.CommonPrefEPFResource;
@@ -42,6 +43,8 @@ import org.eclipse.jface.resource.ImageRegistry;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.ControlAdapter;
 import org.eclipse.swt.events.ControlEvent;
+import org.eclipse.swt.events.ModifyEvent;
+import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.events.SelectionListener;
@@ -61,6 +64,7 @@ import org.eclipse.swt.widgets.TabItem;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableColumn;
 import org.eclipse.swt.widgets.TableItem;
+import org.eclipse.swt.widgets.Text;
 import org.eclipse.swt.widgets.Tree;
 import org.eclipse.swt.widgets.TreeColumn;
 import org.eclipse.swt.widgets.TreeItem;
@@ -86,6 +90,9 @@ public class CommonPrefPreferencePage
 	
 	private Label prefGenInfoText;
 	private Button prefLoadButton;
+	private Button prefCachedStartupButton;
+	private Button prefMergedApplyButton;
+	private Text prefPollIntervalText;
 	private Table prefPathTable;
 	private Button prefFileUpButton;
 	private Button prefFileDownButton;
@@ -151,6 +158,9 @@ public class CommonPrefPreferencePage
 		prefFiles.save();
 		
 		setEnableRead(prefLoadButton.getSelection());
+		setStaleWhileRevalidate(prefCachedStartupButton.getSelection());
+		setMergedApply(prefMergedApplyButton.getSelection());
+		setPollInterval(prefPollIntervalText.getText());
 		setShowCurrent(prefCompareCurrentButton.getSelection());
 		
 		return true;
@@ -216,6 +226,45 @@ public class CommonPrefPreferencePage
 			}
 		});
 		
+		prefCachedStartupButton = new Button(prefPage, SWT.CHECK);
+		prefCachedStartupButton.setText("Apply cached copies of http files on startup and update them in background");
+		prefCachedStartupButton.setSelection(getStaleWhileRevalidate());
+		GridData gdcsb = new GridData(SWT.LEFT, SWT.CENTER, true, false, 1, 1);
+		prefCachedStartupButton.setLayoutData(gdcsb);
+		
+		prefMergedApplyButton = new Button(prefPage, SWT.CHECK);
+		prefMergedApplyButton.setText("Apply all preference files in one step");
+		prefMergedApplyButton.setSelection(getMergedApply());
+		GridData gdmab = new GridData(SWT.LEFT, SWT.CENTER, true, false, 1, 1);
+		prefMergedApplyButton.setLayoutData(gdmab);
+		
+		// Add a text input for the interval for checking http files for updates
+		Composite pollComposite = new Composite(prefPage, SWT.NONE);
+		GridLayout pollLayout = new GridLayout(3, false);
+		pollLayout.marginHeight = 0;
+		pollLayout.marginWidth = 0;
+		pollComposite.setLayout(pollLayout);
+		pollComposite.setLayoutData(new GridData(SWT.LEFT, SWT.CENTER, true, false, 1, 1));
+		
+		Label prefPollIntervalLbl = new Label(pollComposite, SWT.NONE);
+		prefPollIntervalLbl.setText("Check http files for updates every");
+		prefPollIntervalText = new Text(pollComposite, SWT.SINGLE | SWT.BORDER | SWT.RIGHT);
+		prefPollIntervalText.setText(Integer.toString(getPollInterval()));
+		GridData gdpit = new GridData(SWT.LEFT, SWT.CENTER, false, false);
+		gdpit.widthHint = convertWidthInCharsToPixels(6);
+		prefPollIntervalText.setLayoutData(gdpit);
+		prefPollIntervalText.addModifyListener(new ModifyListener() {
+			public void modifyText(ModifyEvent e) {
+				validatePollInterval();
+			}
+		});
+		Label prefPollUnitLbl = new Label(pollComposite, SWT.NONE);
+		prefPollUnitLbl.setText("minutes (0 to disable)");
+		
+		Label prefPollStatsLbl = new Label(prefPage, SWT.WRAP);
+		prefPollStatsLbl.setText(CommonPrefPollJob.getStatistics());
+		prefPollStatsLbl.setLayoutData(new GridData(SWT.LEFT, SWT.TOP, false, false));
+		
 /*		
 		// Add a text input for setting timeout for http input
 		// TODO: Not completed - need add of column. and property
@@ -927,6 +976,69 @@ public class CommonPrefPreferencePage
 		store.setValue(PreferenceInitializer.PREF_ENABLE_READ, enableRead);
 	}
 	
+	private boolean getStaleWhileRevalidate() {
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		return store.getBoolean(PreferenceInitializer.PREF_STALE_WHILE_REVALIDATE);
+	}
+	
+	private void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+		if (staleWhileRevalidate == getStaleWhileRevalidate())
+			return;
+		
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		store.setValue(PreferenceInitializer.PREF_STALE_WHILE_REVALIDATE, staleWhileRevalidate);
+	}
+	
+	private boolean getMergedApply() {
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		return store.getBoolean(PreferenceInitializer.PREF_MERGED_APPLY);
+	}
+	
+	private void setMergedApply(boolean mergedApply) {
+		if (mergedApply == getMergedApply())
+			return;
+		
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		store.setValue(PreferenceInitializer.PREF_MERGED_APPLY, mergedApply);
+	}
+	
+	private int getPollInterval() {
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		return store.getInt(PreferenceInitializer.PREF_POLL_INTERVAL);
+	}
+	
+	private void setPollInterval(String pollIntervalStr) {
+		int pollInterval;
+		try {
+			pollInterval = Integer.parseInt(pollIntervalStr.trim());
+		} catch (NumberFormatException e) {
+			return;
+		}
+		if (pollInterval < 0 || pollInterval > CommonPrefPollJob.MAX_INTERVAL || 
+				pollInterval == getPollInterval())
+			return;
+		
+		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
+		store.setValue(PreferenceInitializer.PREF_POLL_INTERVAL, pollInterval);
+		StartupPlugin.getDefault().startPolling(getShell().getDisplay());
+	}
+	
+	private void validatePollInterval() {
+		String errorMessage = null;
+		try {
+			int pollInterval = Integer.parseInt(prefPollIntervalText.getText().trim());
+			if (pollInterval < 0)
+				errorMessage = "The interval for checking http files can not be negative.";
+			else if (pollInterval > CommonPrefPollJob.MAX_INTERVAL)
+				errorMessage = "The interval for checking http files can not be longer than " + 
+						CommonPrefPollJob.MAX_INTERVAL + " minutes (one day).";
+		} catch (NumberFormatException e) {
+			errorMessage = "The interval for checking http files must be a number of minutes.";
+		}
+		setErrorMessage(errorMessage);
+		setValid(errorMessage == null);
+	}
+	
 	private boolean getShowCurrent() {
 		IPreferenceStore store = StartupPlugin.getDefault().getPreferenceStore();
 		boolean showCurrent = true;
@@ -1070,6 +1182,9 @@ public class CommonPrefPreferencePage
 		boolean isEnabled = prefLoadButton.getSelection();
 		
 		prefPathTable.setEnabled(isEnabled);
+		prefCachedStartupButton.setEnabled(isEnabled);
+		prefMergedApplyButton.setEnabled(isEnabled);
+		prefPollIntervalText.setEnabled(isEnabled);
 		prefFileAddButton.setEnabled(isEnabled);
 		
 		boolean isConfig = isEnabled;
@@ -16,6 +16,8 @@ import java.io.File;
 import org.eclipse.common_prefs.StartupPlugin;
 import org.eclipse.common_prefs.core.CommonPrefEPFResource;
 import org.eclipse.common_prefs.core.CommonPrefEPFResources;
+import org.eclipse.common_prefs.core.CommonPrefHostHealth;
+import org.eclipse.common_prefs.core.CommonPrefResource;
 import org.eclipse.common_prefs.exportWizard.CommonPrefsFileHistory;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.jface.dialogs.Dialog;
@@ -105,8 +107,8 @@ public class PrefFileDialog extends Dialog {
 			FileDialog fd = new FileDialog(getShell());
 			fd.setText("Please select the preference file");
 			fd.setFilterPath(value);
-			fd.setFilterExtensions(new String[] {"*.epf", "*"}); //$NON-NLS-1$
-			fd.setFilterNames(new String[] {"Preference Files (*.epf)", "All Files (*.*)"});				
+			fd.setFilterExtensions(new String[] {"*.epf;*.epf.gz;*.zip;*.jar", "*"}); //$NON-NLS-1$
+			fd.setFilterNames(new String[] {"Preference Files (*.epf, *.epf.gz, *.zip, *.jar)", "All Files (*.*)"});				
 			
 			String f = fd.open();
 			if (f != null) {
@@ -123,15 +125,16 @@ public class PrefFileDialog extends Dialog {
         String errorMessage = null;
         addedPrefFile = null;
       
-        // Validate the input string ends with .epf 
+        // Validate the input string ends with .epf or, if compressed, .epf.gz,
+        // or is an archive of preference files 
         String resourceName = text.getText();
         int resLen = resourceName.length();
         if (resLen < 4) {
-        	setErrorMessage("Too short input value. Filename needs to end with .epf.");
+        	setErrorMessage("Too short input value. Filename needs to end with .epf, .epf.gz, .zip or .jar.");
         	return false;
         }
-        if (resourceName.substring(resLen - 4).compareToIgnoreCase(".epf") != 0) {
-        	setErrorMessage("Input value suffix should be .epf.");
+        if (!CommonPrefResource.isPreferenceResourceName(resourceName)) {
+        	setErrorMessage("Input value suffix should be .epf, .epf.gz, .zip or .jar.");
         	return false;        	
         }
         
@@ -143,10 +146,16 @@ public class PrefFileDialog extends Dialog {
 				errorMessage = "The selected preference file is already in the list.";
 			} else {
 				try {
+					// Validating is asked for explicitly, so try even if the host has failed recently
+					if (validateButton.getSelection())
+						CommonPrefHostHealth.allowTrial(text.getText());
 					addedPrefFile = prefFiles.addPrefFile(selectedPrefFile, text.getText(), false, false);
 					if (validateButton.getSelection() && !addedPrefFile.exists()) {
 						prefFiles.removePrefFile(addedPrefFile);
-						errorMessage = "Input resource can not be accessed.";
+						if (CommonPrefHostHealth.isBlocked(addedPrefFile.getResourceName()))
+							errorMessage = "Input resource can not be accessed. Its host has not responded recently.";
+						else
+							errorMessage = "Input resource can not be accessed.";
 					}
 				} catch (Exception e) {
 					errorMessage = "Invalid input: " + e.getMessage();
@@ -159,10 +168,15 @@ public class PrefFileDialog extends Dialog {
 				errorMessage = "A preference file with selected location is already in the list.";
 			} else {
 				try {
+					if (validateButton.getSelection())
+						CommonPrefHostHealth.allowTrial(text.getText());
 					addedPrefFile = prefFiles.addPrefFile(selectedPrefFile, text.getText(), false, false);
 					if (validateButton.getSelection() && !addedPrefFile.exists()) {
 						prefFiles.removePrefFile(addedPrefFile);
-						errorMessage = "Input resource can not be accessed.";
+						if (CommonPrefHostHealth.isBlocked(addedPrefFile.getResourceName()))
+							errorMessage = "Input resource can not be accessed. Its host has not responded recently.";
+						else
+							errorMessage = "Input resource can not be accessed.";
 					} else					
 						prefFiles.removePrefFile(selectedPrefFile);
 